@@ -47,6 +47,12 @@ var AptPlugin.AptOptions.annotationProcessing: Boolean
         isAnnotationProcessing = value
     }
 
+var AptPlugin.AptOptions.useArgumentFile: Boolean
+    get() = isUseArgumentFile
+    set(value) {
+        isUseArgumentFile = value
+    }
+
 @Suppress("ConflictingExtensionProperty")
 val SourceSet.annotationProcessorConfigurationName: String
     get() = withConvention(AptPlugin.AptSourceSetConvention::class) { annotationProcessorConfigurationName }
@@ -59,6 +65,9 @@ var SourceSet.annotationProcessorPath: FileCollection?
 val SourceSetOutput.generatedSourcesDirs: FileCollection
     get() = AptPlugin.IMPL.getGeneratedSourcesDirs(this)
 
+val SourceSetOutput.generatedResourcesDirs: FileCollection
+    get() = AptPlugin.getGeneratedResourcesDirs(this)
+
 // Eclipse
 
 val EclipseJdt.apt: EclipseJdtApt
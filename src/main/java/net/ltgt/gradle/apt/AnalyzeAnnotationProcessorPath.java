@@ -0,0 +1,306 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Runs annotation processors once with a tracing class loader, and records which entries of the
+ * annotation processor path they actually load classes or resources from.
+ *
+ * <p>Service provider-configuration files (e.g. {@code META-INF/services}) being looked up in all
+ * entries, an entry only providing such a file is only considered used if one of the providers it
+ * lists has been loaded.
+ *
+ * <p>The result is recomputed whenever the annotation processor path, processors or their options
+ * change, but not when the sources or classpath change, so that pruning doesn't run the annotation
+ * processors one more time on every source change. Processors could use different entries to
+ * process new sources though, so the task has to be re-run (e.g. with {@code --rerun-tasks}) when
+ * sources start using other annotations. When {@link #isPrune() prune} is enabled, the compile
+ * task will use the annotation processor path without the unused entries.
+ */
+public class AnalyzeAnnotationProcessorPath extends AnnotationProcessingTask {
+  private static final String USED = "used ";
+  private static final String UNUSED = "unused ";
+  private static final String SERVICES_PREFIX = "META-INF/services/";
+
+  private FileCollection source;
+  private FileCollection classpath;
+  private FileCollection annotationProcessorPath;
+  private File reportFile;
+  private boolean prune;
+
+  public AnalyzeAnnotationProcessorPath() {
+    source = getProject().files();
+    classpath = getProject().files();
+    annotationProcessorPath = getProject().files();
+    reportFile = new File(getTemporaryDir(), "processorPath.txt");
+    onlyIf(task -> !source.isEmpty());
+  }
+
+  /** The sources to process; not an input, see the class documentation. */
+  @Internal
+  public FileCollection getSource() {
+    return source;
+  }
+
+  public void setSource(FileCollection source) {
+    this.source = source;
+  }
+
+  /** The compile classpath; not an input, see the class documentation. */
+  @Internal
+  public FileCollection getClasspath() {
+    return classpath;
+  }
+
+  public void setClasspath(FileCollection classpath) {
+    this.classpath = classpath;
+  }
+
+  @Classpath
+  public FileCollection getAnnotationProcessorPath() {
+    return annotationProcessorPath;
+  }
+
+  public void setAnnotationProcessorPath(FileCollection annotationProcessorPath) {
+    this.annotationProcessorPath = annotationProcessorPath;
+  }
+
+  @OutputFile
+  public File getReportFile() {
+    return reportFile;
+  }
+
+  public void setReportFile(File reportFile) {
+    this.reportFile = reportFile;
+  }
+
+  /** Whether the compile task uses the annotation processor path pruned of unused entries. */
+  @Internal
+  public boolean isPrune() {
+    return prune;
+  }
+
+  public void setPrune(boolean prune) {
+    this.prune = prune;
+  }
+
+  @TaskAction
+  public void analyze() {
+    ProcessorClassLoaders.reportLeaks(getProject(), getLogger());
+    getProject().delete(getTemporaryDir());
+    Set<File> entries = new LinkedHashSet<>(annotationProcessorPath.getFiles());
+    Set<File> used;
+    TracingClassLoader processorClassLoader = new TracingClassLoader(entries);
+    try {
+      new AnnotationProcessing(getCompileOptions(), getAptOptions(), classpath, source.getFiles())
+          .run(
+              processorClassLoader,
+              Function.identity(),
+              new File(getTemporaryDir(), "sources"),
+              new File(getTemporaryDir(), "resources"));
+      used = processorClassLoader.getUsedEntries();
+    } finally {
+      ProcessorClassLoaders.release(getProject(), getPath(), processorClassLoader);
+    }
+
+    List<String> lines = new ArrayList<>();
+    List<String> unused = new ArrayList<>();
+    for (File entry : entries) {
+      if (used.contains(entry)) {
+        lines.add(USED + entry.getAbsolutePath());
+      } else {
+        lines.add(UNUSED + entry.getAbsolutePath());
+        unused.add(entry.getName());
+      }
+    }
+    try {
+      Files.createDirectories(reportFile.toPath().toAbsolutePath().getParent());
+      Files.write(reportFile.toPath(), lines, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    getLogger()
+        .lifecycle(
+            "Annotation processors loaded classes or resources from {} out of {} entries."
+                + (unused.isEmpty() ? "" : " Unused entries:\n  {}"),
+            entries.size() - unused.size(),
+            entries.size(),
+            String.join("\n  ", unused));
+  }
+
+  /**
+   * Returns the given annotation processor path without the entries found to be unused by the last
+   * analysis. Entries that weren't part of the analysis are kept.
+   */
+  FileCollection prune(FileCollection annotationProcessorPath) {
+    if (!reportFile.isFile()) {
+      return annotationProcessorPath;
+    }
+    Set<File> unused = new LinkedHashSet<>();
+    try {
+      for (String line : Files.readAllLines(reportFile.toPath(), StandardCharsets.UTF_8)) {
+        if (line.startsWith(UNUSED)) {
+          unused.add(new File(line.substring(UNUSED.length())));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return annotationProcessorPath.filter(file -> !unused.contains(file.getAbsoluteFile()));
+  }
+
+  private static class TracingClassLoader extends ProcessorClassLoaders.ProcessorClassLoader {
+    private final Map<String, File> entriesByUrl;
+    private final Set<File> used = ConcurrentHashMap.newKeySet();
+    private final Set<String> loadedClasses = ConcurrentHashMap.newKeySet();
+    // provider-configuration files, by the entry they come from
+    private final Map<File, Set<URL>> providerConfigurations = new ConcurrentHashMap<>();
+
+    TracingClassLoader(Set<File> entries) {
+      super(AnnotationProcessing.toUrls(entries));
+      URL[] urls = getURLs();
+      entriesByUrl = new ConcurrentHashMap<>();
+      int i = 0;
+      for (File entry : entries) {
+        entriesByUrl.put(urls[i++].toString(), entry.getAbsoluteFile());
+      }
+    }
+
+    Set<File> getUsedEntries() {
+      Set<File> usedEntries = new LinkedHashSet<>(used);
+      for (Map.Entry<File, Set<URL>> entry : providerConfigurations.entrySet()) {
+        if (usedEntries.contains(entry.getKey())) {
+          continue;
+        }
+        for (URL url : entry.getValue()) {
+          if (listsLoadedProvider(url)) {
+            usedEntries.add(entry.getKey());
+            break;
+          }
+        }
+      }
+      return Collections.unmodifiableSet(usedEntries);
+    }
+
+    private boolean listsLoadedProvider(URL url) {
+      try (InputStream in = url.openStream()) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+          bytes.write(buffer, 0, read);
+        }
+        for (String provider : AnnotationProcessing.parseServiceProviders(bytes.toByteArray())) {
+          if (loadedClasses.contains(provider)) {
+            return true;
+          }
+        }
+        return false;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      Class<?> c = super.findClass(name);
+      loadedClasses.add(name);
+      // record the entry the class has been loaded from
+      findResource(name.replace('.', '/').concat(".class"));
+      return c;
+    }
+
+    @Override
+    @Nullable
+    public URL findResource(String name) {
+      URL url = super.findResource(name);
+      if (url != null) {
+        record(url);
+      }
+      return url;
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+      List<URL> urls = Collections.list(super.findResources(name));
+      // service loaders look up provider-configuration files in all entries; only the entries
+      // whose providers are actually loaded are used.
+      boolean providerConfiguration = name.startsWith(SERVICES_PREFIX);
+      for (URL url : urls) {
+        if (providerConfiguration) {
+          File entry = findEntry(url);
+          if (entry != null) {
+            providerConfigurations
+                .computeIfAbsent(entry, k -> ConcurrentHashMap.newKeySet())
+                .add(url);
+          }
+        } else {
+          record(url);
+        }
+      }
+      return Collections.enumeration(urls);
+    }
+
+    private void record(URL url) {
+      File entry = findEntry(url);
+      if (entry != null) {
+        used.add(entry);
+      }
+    }
+
+    @Nullable
+    private File findEntry(URL url) {
+      String s = url.toString();
+      if (s.startsWith("jar:")) {
+        int sep = s.indexOf("!/");
+        if (sep > 0) {
+          s = s.substring("jar:".length(), sep);
+        }
+      }
+      for (Map.Entry<String, File> entry : entriesByUrl.entrySet()) {
+        String key = entry.getKey();
+        if (s.equals(key) || (key.endsWith("/") && s.startsWith(key))) {
+          return entry.getValue();
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.annotation.Nullable;
+import javax.annotation.processing.Processor;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.compile.CompileOptions;
+
+/** Runs annotation processors ({@code javac -proc:only}) in-process, outside of a compile task. */
+class AnnotationProcessing {
+  static final String PROCESSOR_SERVICES = "META-INF/services/" + Processor.class.getName();
+  static final String INCREMENTAL_PROCESSORS = "META-INF/gradle/incremental.annotation.processors";
+
+  private final CompileOptions compileOptions;
+  private final AptPlugin.AptOptions aptOptions;
+  private final FileCollection classpath;
+  private final Iterable<File> source;
+  @Nullable private List<?> processorNames;
+  @Nullable private Map<String, String> processorArgs;
+  @Nullable private FileCollection sourcepath;
+  @Nullable private DiagnosticListener<? super JavaFileObject> diagnosticListener;
+
+  AnnotationProcessing(
+      CompileOptions compileOptions,
+      AptPlugin.AptOptions aptOptions,
+      FileCollection classpath,
+      Iterable<File> source) {
+    this.compileOptions = compileOptions;
+    this.aptOptions = aptOptions;
+    this.classpath = classpath;
+    this.source = source;
+  }
+
+  /** Overrides the processors from {@link AptPlugin.AptOptions#getProcessors()}. */
+  void setProcessorNames(List<?> processorNames) {
+    this.processorNames = processorNames;
+  }
+
+  /**
+   * Overrides the processor options from {@link AptPlugin.AptOptions#getResolvedProcessorArgs()},
+   * e.g. to resolve them only once when processing in parallel.
+   */
+  void setProcessorArgs(@Nullable Map<String, String> processorArgs) {
+    this.processorArgs = processorArgs;
+  }
+
+  /** Sets the path where to find sources for types referenced but not being processed. */
+  void setSourcepath(FileCollection sourcepath) {
+    this.sourcepath = sourcepath;
+  }
+
+  /**
+   * Sets a listener to receive compiler diagnostics rather than having them printed; errors then
+   * won't fail annotation processing, as they're expected to be reported by the compile task.
+   */
+  void setDiagnosticListener(DiagnosticListener<? super JavaFileObject> diagnosticListener) {
+    this.diagnosticListener = diagnosticListener;
+  }
+
+  /**
+   * Runs the annotation processors loaded from the given class loader, each wrapped by the given
+   * function, generating sources into {@code sourcesDir} and resources into {@code resourcesDir}.
+   *
+   * @return whether processing completed without error
+   */
+  boolean run(
+      ClassLoader processorClassLoader,
+      Function<Processor, Processor> wrapper,
+      File sourcesDir,
+      File resourcesDir) {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      throw new GradleException(
+          "Cannot find the system Java compiler; make sure Gradle runs with a JDK.");
+    }
+    sourcesDir.mkdirs();
+    resourcesDir.mkdirs();
+
+    List<String> options = new ArrayList<>(compileOptions.getCompilerArgs());
+    String encoding = compileOptions.getEncoding();
+    if (encoding != null) {
+      options.add("-encoding");
+      options.add(encoding);
+    }
+    options.add("-proc:only");
+    options.add("-s");
+    options.add(sourcesDir.getAbsolutePath());
+    options.add("-d");
+    options.add(resourcesDir.getAbsolutePath());
+    options.add("-classpath");
+    options.add(classpath.getAsPath());
+    if (sourcepath != null) {
+      options.add("-sourcepath");
+      options.add(sourcepath.getAsPath());
+      options.add("-implicit:none");
+    }
+    Map<String, String> processorArgs =
+        this.processorArgs != null ? this.processorArgs : aptOptions.getResolvedProcessorArgs();
+    if (processorArgs != null) {
+      for (Map.Entry<String, String> entry : processorArgs.entrySet()) {
+        options.add("-A" + entry.getKey() + "=" + entry.getValue());
+      }
+    }
+
+    Thread currentThread = Thread.currentThread();
+    ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+    currentThread.setContextClassLoader(processorClassLoader);
+    try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+      List<Processor> processors = new ArrayList<>();
+      List<?> processorNames =
+          this.processorNames != null ? this.processorNames : aptOptions.getProcessors();
+      for (Processor processor : loadProcessors(processorNames, processorClassLoader)) {
+        processors.add(wrapper.apply(processor));
+      }
+      JavaCompiler.CompilationTask task =
+          compiler.getTask(
+              null,
+              fileManager,
+              diagnosticListener,
+              options,
+              null,
+              fileManager.getJavaFileObjectsFromFiles(source));
+      task.setProcessors(processors);
+      boolean success = task.call();
+      if (!success && diagnosticListener == null) {
+        throw new GradleException(
+            "Annotation processing failed; see the compiler error output for details.");
+      }
+      return success;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      currentThread.setContextClassLoader(contextClassLoader);
+    }
+  }
+
+  /**
+   * Instantiates the named processors, or discovers them through the {@link ServiceLoader} if no
+   * processor name is given, like javac does.
+   */
+  static List<Processor> loadProcessors(
+      @Nullable List<?> processorNames, ClassLoader processorClassLoader) {
+    List<Processor> processors = new ArrayList<>();
+    if (processorNames == null || processorNames.isEmpty()) {
+      for (Processor processor : ServiceLoader.load(Processor.class, processorClassLoader)) {
+        processors.add(processor);
+      }
+      return processors;
+    }
+    for (Object processorName : processorNames) {
+      try {
+        processors.add(
+            Class.forName(String.valueOf(processorName), true, processorClassLoader)
+                .asSubclass(Processor.class)
+                .getConstructor()
+                .newInstance());
+      } catch (ReflectiveOperationException e) {
+        throw new GradleException("Cannot instantiate annotation processor " + processorName, e);
+      }
+    }
+    return processors;
+  }
+
+  /**
+   * Returns the names of the processors registered as services in the given annotation processor
+   * path, without loading them.
+   */
+  static Set<String> discoverProcessorNames(Iterable<File> annotationProcessorPath) {
+    Set<String> names = new LinkedHashSet<>();
+    for (File entry : annotationProcessorPath) {
+      byte[] services = readEntry(entry, PROCESSOR_SERVICES);
+      if (services != null) {
+        names.addAll(parseServiceProviders(services));
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Returns the names of the processors declared as isolating in the Gradle incremental annotation
+   * processing metadata of the given annotation processor path.
+   */
+  static Set<String> discoverIsolatingProcessorNames(Iterable<File> annotationProcessorPath) {
+    Set<String> names = new LinkedHashSet<>();
+    for (File entry : annotationProcessorPath) {
+      byte[] metadata = readEntry(entry, INCREMENTAL_PROCESSORS);
+      if (metadata == null) {
+        continue;
+      }
+      for (String line : parseServiceProviders(metadata)) {
+        int comma = line.indexOf(',');
+        if (comma > 0 && line.substring(comma + 1).trim().equalsIgnoreCase("isolating")) {
+          names.add(line.substring(0, comma).trim());
+        }
+      }
+    }
+    return names;
+  }
+
+  @Nullable
+  private static byte[] readEntry(File entry, String name) {
+    try {
+      if (entry.isDirectory()) {
+        File file = new File(entry, name);
+        return file.isFile() ? Files.readAllBytes(file.toPath()) : null;
+      } else if (entry.isFile()) {
+        try (ZipFile zipFile = new ZipFile(entry)) {
+          ZipEntry zipEntry = zipFile.getEntry(name);
+          if (zipEntry == null) {
+            return null;
+          }
+          try (InputStream in = zipFile.getInputStream(zipEntry)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+              bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+          }
+        }
+      }
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Parses a {@code META-INF/services} provider-configuration file. */
+  static List<String> parseServiceProviders(byte[] content) {
+    List<String> providers = new ArrayList<>();
+    for (String line : new String(content, StandardCharsets.UTF_8).split("\\r?\\n|\\r")) {
+      int comment = line.indexOf('#');
+      String provider = (comment < 0 ? line : line.substring(0, comment)).trim();
+      if (!provider.isEmpty()) {
+        providers.add(provider);
+      }
+    }
+    return providers;
+  }
+
+  static URL[] toUrls(Iterable<File> files) {
+    List<URL> urls = new ArrayList<>();
+    for (File file : files) {
+      try {
+        urls.add(file.toURI().toURL());
+      } catch (MalformedURLException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return urls.toArray(new URL[0]);
+  }
+
+  /**
+   * Returns the extension (JDK 8) or platform (JDK 9+) class loader, which can load {@code
+   * javax.annotation.processing}, to be used as the parent of processor class loaders.
+   */
+  @SuppressWarnings("NullAway") // the system class loader always has a parent
+  static ClassLoader getPlatformClassLoader() {
+    return ClassLoader.getSystemClassLoader().getParent();
+  }
+}
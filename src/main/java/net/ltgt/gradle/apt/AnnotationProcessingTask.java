@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.compile.CompileOptions;
+
+/**
+ * Base class for tasks running annotation processors on behalf of a compile task, whose options
+ * they're given right after creation.
+ *
+ * <p>The values of those options that are passed to the annotation processors are declared as
+ * inputs, so that changing them in the compile task also invalidates this task.
+ */
+public abstract class AnnotationProcessingTask extends DefaultTask {
+  @SuppressWarnings("NullAway.Init") // will be initialized by setCompileOptions after creation
+  private Supplier<CompileOptions> compileOptions;
+
+  @SuppressWarnings("NullAway.Init") // will be initialized by setAptOptions after creation
+  private Supplier<AptPlugin.AptOptions> aptOptions;
+
+  @Internal
+  public CompileOptions getCompileOptions() {
+    return compileOptions.get();
+  }
+
+  public void setCompileOptions(CompileOptions compileOptions) {
+    this.compileOptions = () -> compileOptions;
+  }
+
+  /** Sets the options from the compile task, without creating it before they're needed. */
+  void setCompileOptionsSupplier(Supplier<CompileOptions> compileOptions) {
+    this.compileOptions = compileOptions;
+  }
+
+  @Internal
+  public AptPlugin.AptOptions getAptOptions() {
+    return aptOptions.get();
+  }
+
+  public void setAptOptions(AptPlugin.AptOptions aptOptions) {
+    this.aptOptions = () -> aptOptions;
+  }
+
+  /** Sets the options from the compile task, without creating it before they're needed. */
+  void setAptOptionsSupplier(Supplier<AptPlugin.AptOptions> aptOptions) {
+    this.aptOptions = aptOptions;
+  }
+
+  /** The arguments from {@link CompileOptions#getCompilerArgs()}. */
+  @Input
+  public List<String> getCompilerArgs() {
+    return new ArrayList<>(getCompileOptions().getCompilerArgs());
+  }
+
+  /** The encoding from {@link CompileOptions#getEncoding()}. */
+  @Input
+  @Optional
+  @Nullable
+  public String getEncoding() {
+    return getCompileOptions().getEncoding();
+  }
+
+  /** The processors from {@link AptPlugin.AptOptions#getProcessors()}, as strings. */
+  @Input
+  @Optional
+  @Nullable
+  public List<String> getProcessors() {
+    List<?> processors = getAptOptions().getProcessors();
+    if (processors == null) {
+      return null;
+    }
+    List<String> names = new ArrayList<>();
+    for (Object processor : processors) {
+      names.add(String.valueOf(processor));
+    }
+    return names;
+  }
+
+  /** The processor options from {@link AptPlugin.AptOptions#getEffectiveProcessorArgs()}. */
+  @Input
+  @Optional
+  @Nullable
+  public Map<String, String> getProcessorArgs() {
+    return getAptOptions().getEffectiveProcessorArgs();
+  }
+
+  /** The files passed as processor options, whose content processors are likely to read. */
+  @InputFiles
+  @PathSensitive(PathSensitivity.RELATIVE)
+  public FileCollection getProcessorArgsFiles() {
+    return getProject().files((Callable<Object>) () -> getAptOptions().getProcessorArgsFiles());
+  }
+}
@@ -15,18 +15,26 @@
  */
 package net.ltgt.gradle.apt;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import org.gradle.api.Action;
+import org.gradle.api.GradleException;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
+import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.internal.PropertiesTransformer;
 import org.gradle.api.plugins.ExtensionAware;
 import org.gradle.api.plugins.JavaPlugin;
 import org.gradle.api.plugins.JavaPluginConvention;
 import org.gradle.api.tasks.Delete;
 import org.gradle.api.tasks.SourceSet;
+import org.gradle.api.tasks.SourceSetContainer;
+import org.gradle.api.tasks.compile.JavaCompile;
 import org.gradle.internal.xml.XmlTransformer;
 import org.gradle.plugins.ide.api.PropertiesFileContentMerger;
 import org.gradle.plugins.ide.api.XmlFileContentMerger;
@@ -43,6 +51,7 @@ public class AptEclipsePlugin implements Plugin<Project> {
   public void apply(final Project project) {
     project.getPlugins().apply(AptPlugin.class);
     project.getPlugins().apply(EclipsePlugin.class);
+    SharedFactorypathResolution.register(project);
 
     project
         .getPlugins()
@@ -53,10 +62,8 @@ public class AptEclipsePlugin implements Plugin<Project> {
                   project.getConvention().getPlugin(JavaPluginConvention.class);
               SourceSet mainSourceSet =
                   javaConvention.getSourceSets().getByName(SourceSet.MAIN_SOURCE_SET_NAME);
-              SourceSet testSourceSet =
-                  javaConvention.getSourceSets().getByName(SourceSet.TEST_SOURCE_SET_NAME);
 
-              configureEclipse(project, mainSourceSet, testSourceSet);
+              configureEclipse(project, mainSourceSet, javaConvention.getSourceSets());
             });
   }
 
@@ -65,14 +72,18 @@ public class AptEclipsePlugin implements Plugin<Project> {
    * https://github.com/mkarneim/pojobuilder/wiki/Enabling-PojoBuilder-for-Eclipse-Using-Gradle
    */
   private void configureEclipse(
-      final Project project, final SourceSet mainSourceSet, final SourceSet testSourceSet) {
+      final Project project, final SourceSet mainSourceSet, SourceSetContainer sourceSets) {
     final EclipseModel eclipseModel = project.getExtensions().getByType(EclipseModel.class);
-    configureJdtApt(project, eclipseModel, mainSourceSet);
-    configureFactorypath(project, eclipseModel, mainSourceSet, testSourceSet);
+    EclipseFactorypath factorypath = configureFactorypath(project, eclipseModel, sourceSets);
+    configureJdtApt(project, eclipseModel, mainSourceSet, sourceSets, factorypath);
   }
 
   private void configureJdtApt(
-      final Project project, EclipseModel eclipseModel, final SourceSet mainSourceSet) {
+      final Project project,
+      EclipseModel eclipseModel,
+      final SourceSet mainSourceSet,
+      SourceSetContainer sourceSets,
+      final EclipseFactorypath factorypath) {
     final EclipseJdtApt jdtApt =
         ((ExtensionAware) eclipseModel.getJdt())
             .getExtensions()
@@ -97,7 +108,16 @@ public class AptEclipsePlugin implements Plugin<Project> {
                 .getByName(mainSourceSet.getCompileJavaTaskName())
                 .getExtensions()
                 .getByType(AptPlugin.AptOptions.class)
-                .getProcessorArgs());
+                .getAllProcessorArgs());
+
+    // Disable reconcile-time processing if any heavy processor is in the factorypath
+    jdtApt.setReconcileEnabled(
+        project.provider(() -> !hasHeavyProcessors(jdtApt.getHeavyProcessors(), factorypath)));
+
+    final SourceSet testSourceSet = sourceSets.getByName(SourceSet.TEST_SOURCE_SET_NAME);
+    jdtApt.setGradleGeneratedSourcesDirs(
+        project.provider(() -> getGeneratedSourcesDir(project, mainSourceSet)),
+        project.provider(() -> getGeneratedSourcesDir(project, testSourceSet)));
 
     eclipseModel
         .getJdt()
@@ -121,6 +141,13 @@ public class AptEclipsePlugin implements Plugin<Project> {
                   project.file(".settings/org.eclipse.jdt.apt.core.prefs"));
 
               generateEclipseJdtApt.setJdtApt(jdtApt);
+              // only needed to look for heavy processors
+              generateEclipseJdtApt.dependsOn(
+                  (Callable<Object>)
+                      () ->
+                          jdtApt.getHeavyProcessors().isEmpty()
+                              ? Collections.emptyList()
+                              : factorypath.getPlusConfigurations());
             });
     AptPlugin.IMPL.configureTask(project, Task.class, "eclipse", dependsOn(task));
     final Object cleanTask =
@@ -132,29 +159,69 @@ public class AptEclipsePlugin implements Plugin<Project> {
     AptPlugin.IMPL.configureTask(project, Task.class, "cleanEclipse", dependsOn(cleanTask));
   }
 
-  private void configureFactorypath(
-      final Project project,
-      EclipseModel eclipseModel,
-      SourceSet mainSourceSet,
-      SourceSet testSourceSet) {
+  private static boolean hasHeavyProcessors(
+      Collection<String> heavyProcessors, EclipseFactorypath factorypath) {
+    if (heavyProcessors.isEmpty()) {
+      return false;
+    }
+    Set<File> files = new LinkedHashSet<>();
+    for (Configuration configuration : factorypath.getPlusConfigurations()) {
+      if (!factorypath.getDisabledConfigurations().contains(configuration)) {
+        files.addAll(configuration.getFiles());
+      }
+    }
+    for (Configuration configuration : factorypath.getMinusConfigurations()) {
+      files.removeAll(configuration.getFiles());
+    }
+    for (File file : files) {
+      Set<String> processorNames =
+          AnnotationProcessing.discoverProcessorNames(Collections.singleton(file));
+      if (!Collections.disjoint(processorNames, heavyProcessors)
+          && factorypath.isEnabledByRules(file, () -> processorNames)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static File getGeneratedSourcesDir(Project project, SourceSet sourceSet) {
+    JavaCompile compileTask =
+        (JavaCompile) project.getTasks().getByName(sourceSet.getCompileJavaTaskName());
+    File generatedSourcesDir =
+        compileTask.getOptions().getAnnotationProcessorGeneratedSourcesDirectory();
+    if (generatedSourcesDir == null) {
+      throw new GradleException(
+          "Cannot use the generated sources directory of "
+              + compileTask.getPath()
+              + " in Eclipse, as it is not configured");
+    }
+    return generatedSourcesDir;
+  }
+
+  private EclipseFactorypath configureFactorypath(
+      final Project project, EclipseModel eclipseModel, SourceSetContainer sourceSets) {
+    XmlTransformer xmlTransformer = new XmlTransformer();
+    xmlTransformer.setIndentation("\t");
     final EclipseFactorypath factorypath =
         ((ExtensionAware) eclipseModel)
             .getExtensions()
             .create(
-                "factorypath",
-                EclipseFactorypath.class,
-                new XmlFileContentMerger(new XmlTransformer()));
-    factorypath.setPlusConfigurations(
-        new ArrayList<>(
-            Arrays.asList(
-                project
-                    .getConfigurations()
-                    .getByName(
-                        AptPlugin.IMPL.getAnnotationProcessorConfigurationName(mainSourceSet)),
-                project
-                    .getConfigurations()
-                    .getByName(
-                        AptPlugin.IMPL.getAnnotationProcessorConfigurationName(testSourceSet)))));
+                "factorypath", EclipseFactorypath.class, new XmlFileContentMerger(xmlTransformer));
+    // Eclipse only has one factorypath per project, for all source sets; the processors of source
+    // sets other than main and test are listed but disabled by default, as they'd run on all
+    // sources.
+    sourceSets.all(
+        sourceSet -> {
+          Configuration configuration =
+              project
+                  .getConfigurations()
+                  .getByName(AptPlugin.IMPL.getAnnotationProcessorConfigurationName(sourceSet));
+          factorypath.getPlusConfigurations().add(configuration);
+          if (!sourceSet.getName().equals(SourceSet.MAIN_SOURCE_SET_NAME)
+              && !sourceSet.getName().equals(SourceSet.TEST_SOURCE_SET_NAME)) {
+            factorypath.getDisabledConfigurations().add(configuration);
+          }
+        });
     final Object task =
         AptPlugin.IMPL.createTask(
             project,
@@ -166,7 +233,8 @@ public class AptEclipsePlugin implements Plugin<Project> {
               generateEclipseFactorypath.setOutputFile(project.file(".factorypath"));
 
               generateEclipseFactorypath.setFactorypath(factorypath);
-              generateEclipseFactorypath.dependsOn(factorypath.getPlusConfigurations().toArray());
+              generateEclipseFactorypath.dependsOn(
+                  (Callable<Object>) factorypath::getPlusConfigurations);
             });
     AptPlugin.IMPL.configureTask(project, Task.class, "eclipse", dependsOn(task));
     final Object cleanTask =
@@ -176,5 +244,6 @@ public class AptEclipsePlugin implements Plugin<Project> {
             Delete.class,
             cleanEclipseFactorypath -> cleanEclipseFactorypath.delete(task));
     AptPlugin.IMPL.configureTask(project, Task.class, "cleanEclipse", dependsOn(cleanTask));
+    return factorypath;
   }
 }
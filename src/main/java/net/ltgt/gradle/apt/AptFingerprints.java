@@ -0,0 +1,339 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.annotation.Nullable;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.Task;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.compile.AbstractCompile;
+import org.gradle.api.tasks.compile.CompileOptions;
+import org.gradle.api.tasks.compile.GroovyCompile;
+import org.gradle.api.tasks.compile.JavaCompile;
+import org.gradle.api.tasks.options.Option;
+
+/**
+ * Dumps the fingerprint of every annotation-processing-related input of the project's compile
+ * tasks, one sorted {@code key=value} line per input, so two dumps (e.g. from CI and from a
+ * developer machine) can easily be diffed.
+ *
+ * <p>When a baseline dump is given (with {@code --baseline=<file>}), inputs that differ from it
+ * are also reported.
+ */
+public class AptFingerprints extends DefaultTask {
+  private File fingerprintsFile;
+  @Nullable private File baseline;
+
+  @SuppressWarnings("NullAway") // fingerprintsFile is initialized right below
+  public AptFingerprints() {
+    fingerprintsFile = new File(getProject().getBuildDir(), "reports/apt/fingerprints.txt");
+    getOutputs().upToDateWhen(task -> false);
+    dependsOn(
+        (Callable<List<FileCollection>>)
+            () -> {
+              List<FileCollection> processorPaths = new ArrayList<>();
+              for (AbstractCompile task : getCompileTasks()) {
+                FileCollection annotationProcessorPath = getAnnotationProcessorPath(task);
+                if (annotationProcessorPath != null) {
+                  processorPaths.add(annotationProcessorPath);
+                }
+              }
+              return processorPaths;
+            });
+  }
+
+  @OutputFile
+  public File getFingerprintsFile() {
+    return fingerprintsFile;
+  }
+
+  public void setFingerprintsFile(File fingerprintsFile) {
+    this.fingerprintsFile = fingerprintsFile;
+  }
+
+  @Internal
+  @Nullable
+  public File getBaseline() {
+    return baseline;
+  }
+
+  public void setBaseline(@Nullable File baseline) {
+    this.baseline = baseline;
+  }
+
+  @Option(option = "baseline", description = "A previous fingerprints dump to compare with.")
+  public void setBaseline(String baseline) {
+    this.baseline = getProject().file(baseline);
+  }
+
+  @TaskAction
+  public void dump() throws IOException {
+    Map<String, String> fingerprints = new TreeMap<>();
+    for (AbstractCompile task : getCompileTasks()) {
+      fingerprint(task, fingerprints);
+    }
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+      lines.add(entry.getKey() + "=" + entry.getValue());
+    }
+    Files.createDirectories(fingerprintsFile.toPath().toAbsolutePath().getParent());
+    Files.write(fingerprintsFile.toPath(), lines, StandardCharsets.UTF_8);
+    getLogger().lifecycle("Annotation processing fingerprints written to {}", fingerprintsFile);
+
+    File baseline = this.baseline;
+    if (baseline != null) {
+      List<String> differences = compare(read(baseline), fingerprints);
+      if (differences.isEmpty()) {
+        getLogger().lifecycle("No difference with {}", baseline);
+      } else {
+        getLogger()
+            .lifecycle("Differences with {}:\n  {}", baseline, String.join("\n  ", differences));
+      }
+    }
+  }
+
+  private List<AbstractCompile> getCompileTasks() {
+    List<AbstractCompile> tasks = new ArrayList<>();
+    for (AbstractCompile task : getProject().getTasks().withType(AbstractCompile.class)) {
+      if (task.getExtensions().findByType(AptPlugin.AptOptions.class) != null) {
+        tasks.add(task);
+      }
+    }
+    return tasks;
+  }
+
+  @Nullable
+  private static CompileOptions getCompileOptions(Task task) {
+    if (task instanceof JavaCompile) {
+      return ((JavaCompile) task).getOptions();
+    }
+    if (task instanceof GroovyCompile) {
+      return ((GroovyCompile) task).getOptions();
+    }
+    return null;
+  }
+
+  @Nullable
+  private static FileCollection getAnnotationProcessorPath(Task task) {
+    CompileOptions compileOptions = getCompileOptions(task);
+    return compileOptions == null ? null : compileOptions.getAnnotationProcessorPath();
+  }
+
+  private void fingerprint(AbstractCompile task, Map<String, String> fingerprints) {
+    String prefix = task.getPath() + ".";
+    AptPlugin.AptOptions aptOptions = task.getExtensions().getByType(AptPlugin.AptOptions.class);
+    fingerprints.put(
+        prefix + "aptOptions.annotationProcessing",
+        String.valueOf(aptOptions.isAnnotationProcessing()));
+    List<?> processors = aptOptions.getProcessors();
+    if (processors != null) {
+      fingerprints.put(
+          prefix + "aptOptions.processors",
+          processors.stream().map(String::valueOf).collect(Collectors.joining(",")));
+    }
+    Map<String, String> processorArgs = aptOptions.getEffectiveProcessorArgs();
+    if (processorArgs != null) {
+      for (Map.Entry<String, String> entry : processorArgs.entrySet()) {
+        fingerprints.put(
+            prefix + "aptOptions.processorArgs." + entry.getKey(),
+            String.valueOf(entry.getValue()));
+      }
+    }
+    fingerprintFiles(
+        prefix + "aptOptions.processorArgsFiles",
+        getProject().files(aptOptions.getProcessorArgsFiles()),
+        fingerprints);
+    CompileOptions compileOptions = getCompileOptions(task);
+    if (compileOptions != null) {
+      fingerprints.put(
+          prefix + "options.compilerArgs", String.join(" ", compileOptions.getCompilerArgs()));
+    }
+    FileCollection annotationProcessorPath = getAnnotationProcessorPath(task);
+    if (annotationProcessorPath != null) {
+      fingerprintClasspath(
+          prefix + "annotationProcessorPath", annotationProcessorPath, fingerprints);
+    }
+  }
+
+  /**
+   * Fingerprints files tracked with a relative path sensitivity, i.e. by their name (or, for
+   * directories, by the paths of the files they contain) and content.
+   */
+  private static void fingerprintFiles(
+      String prefix, FileCollection files, Map<String, String> fingerprints) {
+    for (File file : files) {
+      if (file.exists()) {
+        fingerprints.merge(prefix + "." + file.getName(), fingerprint(file), (a, b) -> a + "," + b);
+      }
+    }
+  }
+
+  /**
+   * Fingerprints a classpath like Gradle does: the content hash of each entry, in order, whatever
+   * the path of the entry.
+   */
+  private static void fingerprintClasspath(
+      String prefix, FileCollection classpath, Map<String, String> fingerprints) {
+    int index = 0;
+    for (File file : classpath) {
+      if (file.exists()) {
+        fingerprints.put(prefix + "." + index++, fingerprint(file));
+      }
+    }
+  }
+
+  /**
+   * Returns the content hash of the file; jar entries (or files within directories) are hashed
+   * along with their relative path, in path order, ignoring timestamps.
+   */
+  private static String fingerprint(File file) {
+    if (file.isDirectory()) {
+      return hashDirectory(file.toPath());
+    }
+    try (ZipFile zipFile = new ZipFile(file)) {
+      return hashZip(zipFile);
+    } catch (IOException e) {
+      // Not a jar
+      return hash(file);
+    }
+  }
+
+  private static String hash(File file) {
+    MessageDigest digest = newDigest();
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      update(digest, in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return toHex(digest.digest());
+  }
+
+  private static String hashZip(ZipFile zipFile) throws IOException {
+    Map<String, ZipEntry> entries = new TreeMap<>();
+    for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+      ZipEntry entry = e.nextElement();
+      if (!entry.isDirectory()) {
+        entries.put(entry.getName(), entry);
+      }
+    }
+    MessageDigest digest = newDigest();
+    for (Map.Entry<String, ZipEntry> entry : entries.entrySet()) {
+      digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+      try (InputStream in = zipFile.getInputStream(entry.getValue())) {
+        update(digest, in);
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  private static String hashDirectory(Path dir) {
+    MessageDigest digest = newDigest();
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+        digest.update(
+            dir.relativize(file)
+                .toString()
+                .replace(File.separatorChar, '/')
+                .getBytes(StandardCharsets.UTF_8));
+        try (InputStream in = Files.newInputStream(file)) {
+          update(digest, in);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return toHex(digest.digest());
+  }
+
+  private static void update(MessageDigest digest, InputStream in) throws IOException {
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      digest.update(buffer, 0, read);
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  private static Map<String, String> read(File dump) throws IOException {
+    Map<String, String> fingerprints = new LinkedHashMap<>();
+    for (String line : Files.readAllLines(dump.toPath(), StandardCharsets.UTF_8)) {
+      int sep = line.indexOf('=');
+      if (sep > 0) {
+        fingerprints.put(line.substring(0, sep), line.substring(sep + 1));
+      }
+    }
+    return fingerprints;
+  }
+
+  static List<String> compare(Map<String, String> baseline, Map<String, String> current) {
+    Set<String> keys = new TreeSet<>(baseline.keySet());
+    keys.addAll(current.keySet());
+    List<String> differences = new ArrayList<>();
+    for (String key : keys) {
+      String before = baseline.get(key);
+      String after = current.get(key);
+      if (before == null) {
+        differences.add(key + ": only in current build");
+      } else if (after == null) {
+        differences.add(key + ": only in baseline");
+      } else if (!before.equals(after)) {
+        differences.add(key + ": " + before + " -> " + after);
+      }
+    }
+    return Collections.unmodifiableList(differences);
+  }
+}
@@ -18,22 +18,43 @@ package net.ltgt.gradle.apt;
 import groovy.util.Node;
 import groovy.util.NodeList;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.file.FileCollection;
 import org.gradle.api.internal.HasConvention;
 import org.gradle.api.plugins.ExtensionAware;
 import org.gradle.api.plugins.JavaPlugin;
 import org.gradle.api.plugins.JavaPluginConvention;
 import org.gradle.api.tasks.SourceSet;
+import org.gradle.api.tasks.SourceSetContainer;
 import org.gradle.plugins.ide.idea.GenerateIdeaModule;
+import org.gradle.plugins.ide.idea.GenerateIdeaProject;
 import org.gradle.plugins.ide.idea.IdeaPlugin;
 import org.gradle.plugins.ide.idea.model.IdeaModel;
 import org.gradle.plugins.ide.idea.model.IdeaModule;
@@ -42,6 +63,8 @@ import org.gradle.plugins.ide.idea.model.IdeaProject;
 public class AptIdeaPlugin implements Plugin<Project> {
   private static final boolean isIdeaImport =
       Boolean.getBoolean("idea.active") && System.getProperty("idea.version") != null;
+  // IDEA 2019.1 delegates build and run actions to Gradle by default
+  private static final Pattern IDEA_VERSION = Pattern.compile("^(\\d+)\\.(\\d+)");
 
   private static boolean classExists(String name) {
     try {
@@ -81,24 +104,22 @@ public class AptIdeaPlugin implements Plugin<Project> {
     project.afterEvaluate(
         project1 -> {
           if (apt.isAddGeneratedSourcesDirs()) {
-            Collection<File> mainGeneratedSourcesDirs =
-                AptPlugin.IMPL.getGeneratedSourcesDirs(mainSourceSet.getOutput()).getFiles();
-            Collection<File> testGeneratedSourcesDirs =
-                AptPlugin.IMPL.getGeneratedSourcesDirs(testSourceSet.getOutput()).getFiles();
+            // Only resolve the generated sources dirs when the IDEA model is actually used,
+            // i.e. by the ideaModule task or the IDE model builder.
+            FileCollection mainGeneratedSourcesDirs =
+                AptPlugin.IMPL.getGeneratedSourcesDirs(mainSourceSet.getOutput());
+            FileCollection testGeneratedSourcesDirs =
+                AptPlugin.IMPL.getGeneratedSourcesDirs(testSourceSet.getOutput());
             // For some reason, modifying the existing collections doesn't work.
-            // We need to copy the values and then assign it back.
-            if (!mainGeneratedSourcesDirs.isEmpty()) {
-              ideaModule.setSourceDirs(
-                  addToSet(ideaModule.getSourceDirs(), mainGeneratedSourcesDirs));
-              ideaModule.setGeneratedSourceDirs(
-                  addToSet(ideaModule.getGeneratedSourceDirs(), mainGeneratedSourcesDirs));
-            }
-            if (!testGeneratedSourcesDirs.isEmpty()) {
-              ideaModule.setTestSourceDirs(
-                  addToSet(ideaModule.getTestSourceDirs(), testGeneratedSourcesDirs));
-              ideaModule.setGeneratedSourceDirs(
-                  addToSet(ideaModule.getGeneratedSourceDirs(), testGeneratedSourcesDirs));
-            }
+            // We need to wrap the values and then assign it back.
+            ideaModule.setSourceDirs(
+                new LazyFileSet(ideaModule.getSourceDirs(), mainGeneratedSourcesDirs));
+            ideaModule.setTestSourceDirs(
+                new LazyFileSet(ideaModule.getTestSourceDirs(), testGeneratedSourcesDirs));
+            ideaModule.setGeneratedSourceDirs(
+                new LazyFileSet(
+                    ideaModule.getGeneratedSourceDirs(),
+                    project1.files(mainGeneratedSourcesDirs, testGeneratedSourcesDirs)));
           }
 
           if (apt.isAddAptDependencies()) {
@@ -123,10 +144,49 @@ public class AptIdeaPlugin implements Plugin<Project> {
         });
   }
 
-  private static Set<File> addToSet(Set<File> sourceDirs, Collection<File> dirs) {
-    Set<File> newSet = new LinkedHashSet<>(sourceDirs);
-    newSet.addAll(dirs);
-    return newSet;
+  /**
+   * A set of files whose additional files are only computed when first accessed. It can still be
+   * modified (e.g. from the {@code idea.module} DSL), changes being applied to the computed set.
+   */
+  private static class LazyFileSet extends AbstractSet<File> {
+    private final Set<File> files;
+    private final FileCollection additionalFiles;
+    @Nullable private Set<File> resolved;
+
+    LazyFileSet(Set<File> files, FileCollection additionalFiles) {
+      this.files = files;
+      this.additionalFiles = additionalFiles;
+    }
+
+    private Set<File> resolve() {
+      Set<File> resolved = this.resolved;
+      if (resolved == null) {
+        resolved = new LinkedHashSet<>(files);
+        resolved.addAll(additionalFiles.getFiles());
+        this.resolved = resolved;
+      }
+      return resolved;
+    }
+
+    @Override
+    public Iterator<File> iterator() {
+      return resolve().iterator();
+    }
+
+    @Override
+    public int size() {
+      return resolve().size();
+    }
+
+    @Override
+    public boolean add(File file) {
+      return resolve().add(file);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      return resolve().remove(o);
+    }
   }
 
   @SuppressWarnings("NullAway")
@@ -139,8 +199,18 @@ public class AptIdeaPlugin implements Plugin<Project> {
     if (project.getParent() == null) {
       final IdeaProject ideaProject =
           project.getExtensions().getByType(IdeaModel.class).getProject();
-      final ProjectAptConvention apt = new ProjectAptConvention();
+      final ProjectAptConvention apt = new ProjectAptConvention(project, ideaProject);
       ((HasConvention) ideaProject).getConvention().getPlugins().put("net.ltgt.apt-idea", apt);
+      AptPlugin.IMPL.configureTasks(
+          project,
+          GenerateIdeaProject.class,
+          generateIdeaProject ->
+              generateIdeaProject.dependsOn(
+                  (Callable<Object>)
+                      () ->
+                          apt.isConfigureAnnotationProcessing() && !apt.isDelegatedBuild()
+                              ? getProcessorPaths(ideaProject).values()
+                              : Collections.emptyList()));
       ideaProject
           .getIpr()
           .withXml(
@@ -160,36 +230,193 @@ public class AptIdeaPlugin implements Plugin<Project> {
                   }
                   Node annotationProcessing =
                       compilerConfiguration.appendNode("annotationProcessing");
-                  Map<String, Object> profileAttributes = new LinkedHashMap<>();
-                  profileAttributes.put("name", "Default");
-                  profileAttributes.put("enabled", true);
-                  profileAttributes.put("default", true);
-                  Node profile = annotationProcessing.appendNode("profile", profileAttributes);
-                  // XXX: this assumes that all subprojects use the same name for their
-                  // buildDir
-                  profile.appendNode(
-                      "sourceOutputDir",
-                      Collections.singletonMap(
-                          "name",
-                          project.relativePath(project.getBuildDir())
-                              + "/generated/sources/annotationProcessor/java/"
-                              + SourceSet.MAIN_SOURCE_SET_NAME));
-                  profile.appendNode(
-                      "sourceTestOutputDir",
-                      Collections.singletonMap(
-                          "name",
-                          project.relativePath(project.getBuildDir())
-                              + "/generated/sources/annotationProcessor/java/"
-                              + SourceSet.TEST_SOURCE_SET_NAME));
-                  profile.appendNode(
-                      "outputRelativeToContentRoot", Collections.singletonMap("value", true));
-                  profile.appendNode(
+                  if (apt.isDelegatedBuild()) {
+                    // Annotation processing is done by Gradle, whose generated sources dirs are
+                    // configured as generated sources roots of the modules.
+                    appendProfile(annotationProcessing, project, "Default", true, false);
+                    continue;
+                  }
+                  // Modules not managed by this plugin fall back to the default profile, which
+                  // looks for processors in the module classpath.
+                  Node defaultProfile =
+                      appendProfile(annotationProcessing, project, "Default", true, true);
+                  defaultProfile.appendNode(
                       "processorPath", Collections.singletonMap("useClasspath", true));
+
+                  // Modules with identical processor paths share the same profile
+                  Map<List<File>, List<String>> modules = new LinkedHashMap<>();
+                  for (Map.Entry<IdeaModule, FileCollection> entry :
+                      getProcessorPaths(ideaProject).entrySet()) {
+                    modules
+                        .computeIfAbsent(
+                            new ArrayList<>(entry.getValue().getFiles()), k -> new ArrayList<>())
+                        .add(entry.getKey().getName());
+                  }
+                  for (Map.Entry<List<File>, List<String>> entry : modules.entrySet()) {
+                    List<File> processorPath = entry.getKey();
+                    Node profile =
+                        appendProfile(
+                            annotationProcessing,
+                            project,
+                            "apt-" + hash(processorPath).substring(0, 12),
+                            false,
+                            !processorPath.isEmpty());
+                    Node processorPathNode =
+                        profile.appendNode(
+                            "processorPath", Collections.singletonMap("useClasspath", false));
+                    for (File file : processorPath) {
+                      processorPathNode.appendNode(
+                          "entry",
+                          Collections.singletonMap(
+                              "name", file.getAbsolutePath().replace(File.separatorChar, '/')));
+                    }
+                    for (String module : entry.getValue()) {
+                      profile.appendNode("module", Collections.singletonMap("name", module));
+                    }
+                  }
                 }
               });
     }
   }
 
+  private static Node appendProfile(
+      Node annotationProcessing, Project project, String name, boolean isDefault, boolean enabled) {
+    Map<String, Object> profileAttributes = new LinkedHashMap<>();
+    profileAttributes.put("name", name);
+    profileAttributes.put("enabled", enabled);
+    if (isDefault) {
+      profileAttributes.put("default", true);
+    }
+    Node profile = annotationProcessing.appendNode("profile", profileAttributes);
+    // XXX: this assumes that all subprojects use the same name for their buildDir
+    profile.appendNode(
+        "sourceOutputDir",
+        Collections.singletonMap(
+            "name",
+            project.relativePath(project.getBuildDir())
+                + "/generated/sources/annotationProcessor/java/"
+                + SourceSet.MAIN_SOURCE_SET_NAME));
+    profile.appendNode(
+        "sourceTestOutputDir",
+        Collections.singletonMap(
+            "name",
+            project.relativePath(project.getBuildDir())
+                + "/generated/sources/annotationProcessor/java/"
+                + SourceSet.TEST_SOURCE_SET_NAME));
+    profile.appendNode("outputRelativeToContentRoot", Collections.singletonMap("value", true));
+    return profile;
+  }
+
+  /**
+   * Returns the processor path of each module whose project uses this plugin along with the Java
+   * plugin. IDEA only has one profile per module, so main and test processors are combined.
+   */
+  private static Map<IdeaModule, FileCollection> getProcessorPaths(IdeaProject ideaProject) {
+    Map<IdeaModule, FileCollection> processorPaths = new LinkedHashMap<>();
+    for (IdeaModule ideaModule : ideaProject.getModules()) {
+      Project project = ideaModule.getProject();
+      if (!project.getPlugins().hasPlugin(AptIdeaPlugin.class)
+          || !project.getPlugins().hasPlugin(JavaPlugin.class)) {
+        continue;
+      }
+      SourceSetContainer sourceSets =
+          project.getConvention().getPlugin(JavaPluginConvention.class).getSourceSets();
+      processorPaths.put(
+          ideaModule,
+          project.files(
+              AptPlugin.IMPL.getAnnotationProcessorPath(
+                  sourceSets.getByName(SourceSet.MAIN_SOURCE_SET_NAME)),
+              AptPlugin.IMPL.getAnnotationProcessorPath(
+                  sourceSets.getByName(SourceSet.TEST_SOURCE_SET_NAME))));
+    }
+    return processorPaths;
+  }
+
+  private static String hash(List<File> processorPath) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+    for (File file : processorPath) {
+      digest.update(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    }
+    return AptFingerprints.toHex(digest.digest());
+  }
+
+  /**
+   * Detects whether IntelliJ IDEA delegates build and run actions to Gradle.
+   *
+   * <p>When importing the project in IDEA, this reads the {@code delegatedBuild} option from the
+   * {@code .idea/gradle.xml} settings of the directory-based project, defaulting to the IDEA
+   * version's default when absent. Otherwise (i.e. with the {@code idea} task), this reads the
+   * same option from the file-based project's settings in the existing {@code .ipr} file, if any,
+   * assuming IDEA builds the project itself when absent (the IDEA version isn't known then).
+   */
+  private static boolean detectDelegatedBuild(Project rootProject, @Nullable File iprFile) {
+    File settings = isIdeaImport ? rootProject.file(".idea/gradle.xml") : iprFile;
+    Boolean delegatedBuild =
+        settings == null ? null : readDelegatedBuildOption(rootProject, settings);
+    if (delegatedBuild != null) {
+      return delegatedBuild;
+    }
+    return isIdeaImport && isDelegatedBuildDefault(System.getProperty("idea.version", ""));
+  }
+
+  static boolean isDelegatedBuildDefault(String ideaVersion) {
+    Matcher matcher = IDEA_VERSION.matcher(ideaVersion);
+    if (!matcher.find()) {
+      return false;
+    }
+    int major = Integer.parseInt(matcher.group(1));
+    int minor = Integer.parseInt(matcher.group(2));
+    return major > 2019 || (major == 2019 && minor >= 1);
+  }
+
+  /**
+   * Reads the {@code delegatedBuild} option of the linked Gradle projects from IDEA project
+   * settings; returns {@code true} if any of them delegates build and run actions to Gradle, or
+   * {@code null} if the option is absent.
+   */
+  @Nullable
+  private static Boolean readDelegatedBuildOption(Project project, File settings) {
+    if (!settings.isFile()) {
+      return null;
+    }
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    Boolean delegatedBuild = null;
+    try (InputStream in = Files.newInputStream(settings.toPath())) {
+      XMLStreamReader reader = factory.createXMLStreamReader(in);
+      try {
+        while (reader.hasNext()) {
+          if (reader.next() == XMLStreamConstants.START_ELEMENT
+              && "option".equals(reader.getLocalName())
+              && "delegatedBuild".equals(reader.getAttributeValue(null, "name"))) {
+            if (Boolean.parseBoolean(reader.getAttributeValue(null, "value"))) {
+              return true;
+            }
+            delegatedBuild = false;
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException | XMLStreamException e) {
+      project
+          .getLogger()
+          .warn(
+              "Cannot read IntelliJ IDEA settings from {}, assuming IDEA builds the project itself",
+              settings,
+              e);
+      return false;
+    }
+    return delegatedBuild;
+  }
+
   public static class ModuleApt {
     private boolean addGeneratedSourcesDirs = true;
     private boolean addAptDependencies = true;
@@ -222,7 +449,16 @@ public class AptIdeaPlugin implements Plugin<Project> {
   }
 
   public static class ProjectAptConvention {
+    private final Project project;
+    private final IdeaProject ideaProject;
     private boolean configureAnnotationProcessing = true;
+    @Nullable private Boolean delegatedBuild;
+    @Nullable private Boolean detectedDelegatedBuild;
+
+    ProjectAptConvention(Project project, IdeaProject ideaProject) {
+      this.project = project;
+      this.ideaProject = ideaProject;
+    }
 
     public boolean isConfigureAnnotationProcessing() {
       return configureAnnotationProcessing;
@@ -231,5 +467,31 @@ public class AptIdeaPlugin implements Plugin<Project> {
     public void setConfigureAnnotationProcessing(boolean configureAnnotationProcessing) {
       this.configureAnnotationProcessing = configureAnnotationProcessing;
     }
+
+    /**
+     * Whether IDEA delegates build and run actions to Gradle; {@code null} (the default) to detect
+     * it from the IDEA project settings.
+     */
+    @Nullable
+    public Boolean getDelegatedBuild() {
+      return delegatedBuild;
+    }
+
+    public void setDelegatedBuild(@Nullable Boolean delegatedBuild) {
+      this.delegatedBuild = delegatedBuild;
+    }
+
+    boolean isDelegatedBuild() {
+      Boolean delegatedBuild = this.delegatedBuild;
+      if (delegatedBuild != null) {
+        return delegatedBuild;
+      }
+      delegatedBuild = detectedDelegatedBuild;
+      if (delegatedBuild == null) {
+        delegatedBuild = detectDelegatedBuild(project, ideaProject.getOutputFile());
+        detectedDelegatedBuild = delegatedBuild;
+      }
+      return delegatedBuild;
+    }
   }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.gradle.api.Project;
+
+/**
+ * Configures how annotation processor path entries are normalized when computing compile tasks'
+ * up-to-date checks and build cache keys.
+ *
+ * <p>Annotation processor paths are tracked as classpaths, so the order and timestamps of jar
+ * entries are already ignored. Files matching the patterns configured here will also be ignored,
+ * such as manifests embedding build timestamps.
+ *
+ * <p>Gradle only has a project-wide setting for classpath normalization, so those patterns also
+ * apply to other classpath inputs of the project (e.g. test runtime classpaths).
+ */
+public class AptNormalization {
+  static final String MANIFEST = "META-INF/MANIFEST.MF";
+  static final String MAVEN_METADATA = "META-INF/maven/**";
+
+  private final Project project;
+  private final Set<String> ignores = new LinkedHashSet<>();
+
+  public AptNormalization(Project project) {
+    this.project = project;
+  }
+
+  /** Returns the patterns of files ignored within annotation processor path entries. */
+  public Set<String> getIgnores() {
+    return Collections.unmodifiableSet(ignores);
+  }
+
+  /** Ignores files matching the given Ant-style patterns, e.g. {@code META-INF/build.txt}. */
+  public void ignore(String... patterns) {
+    for (String pattern : Arrays.asList(patterns)) {
+      if (ignores.add(pattern)) {
+        project
+            .getNormalization()
+            .runtimeClasspath(runtimeClasspath -> runtimeClasspath.ignore(pattern));
+      }
+    }
+  }
+
+  /** Ignores the {@code META-INF/MANIFEST.MF} file, e.g. when it contains build timestamps. */
+  public void ignoreManifest() {
+    ignore(MANIFEST);
+  }
+
+  /**
+   * Ignores the {@code META-INF/maven} metadata, whose {@code pom.properties} contains the build
+   * timestamp.
+   */
+  public void ignoreMavenMetadata() {
+    ignore(MAVEN_METADATA);
+  }
+}
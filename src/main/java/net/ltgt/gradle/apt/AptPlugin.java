@@ -15,34 +15,60 @@
  */
 package net.ltgt.gradle.apt;
 
+import groovy.lang.Closure;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 import org.gradle.api.Action;
+import org.gradle.api.GradleException;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
 import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.Directory;
 import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.RegularFile;
 import org.gradle.api.file.SourceDirectorySet;
 import org.gradle.api.internal.HasConvention;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.plugins.ExtensionAware;
 import org.gradle.api.plugins.GroovyBasePlugin;
+import org.gradle.api.plugins.HelpTasksPlugin;
 import org.gradle.api.plugins.JavaBasePlugin;
 import org.gradle.api.plugins.JavaPluginConvention;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.reflect.HasPublicType;
 import org.gradle.api.reflect.TypeOf;
 import org.gradle.api.tasks.GroovySourceSet;
 import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.SourceSet;
 import org.gradle.api.tasks.SourceSetOutput;
 import org.gradle.api.tasks.compile.AbstractCompile;
 import org.gradle.api.tasks.compile.CompileOptions;
 import org.gradle.api.tasks.compile.GroovyCompile;
 import org.gradle.api.tasks.compile.JavaCompile;
+import org.gradle.util.ConfigureUtil;
 import org.gradle.util.GradleVersion;
 
 public class AptPlugin implements Plugin<Project> {
@@ -51,16 +77,37 @@ public class AptPlugin implements Plugin<Project> {
 
   static final Impl IMPL = Impl.newInstance();
 
+  private static final String SOURCE_SET_OUTPUT_GENERATED_RESOURCES_DIRS =
+      "generatedResourcesDirs";
+
   @Override
   public void apply(final Project project) {
     configureCompileTasks(project, JavaCompile.class, JavaCompile::getOptions);
     configureCompileTasks(project, GroovyCompile.class, GroovyCompile::getOptions);
+    project.getExtensions().create("aptNormalization", AptNormalization.class, project);
+    IMPL.createTask(
+        project,
+        "aptFingerprints",
+        AptFingerprints.class,
+        task -> {
+          task.setGroup(HelpTasksPlugin.HELP_GROUP);
+          task.setDescription(
+              "Dumps the fingerprints of annotation processing inputs of compile tasks,"
+                  + " optionally comparing them with a previous dump.");
+        });
 
     project
         .getPlugins()
         .withType(
             JavaBasePlugin.class,
             javaBasePlugin -> {
+              IMPL.createTask(
+                  project,
+                  "aptWatch",
+                  AptWatch.class,
+                  task ->
+                      task.setDescription(
+                          "Keeps running annotation processors whenever Java sources change."));
               final JavaPluginConvention javaConvention =
                   project.getConvention().getPlugin(JavaPluginConvention.class);
               javaConvention
@@ -76,6 +123,22 @@ public class AptPlugin implements Plugin<Project> {
                             sourceSet.getCompileJavaTaskName(),
                             JavaCompile.class,
                             JavaCompile::getOptions);
+
+                        // The annotation processor path of the compile task, before it's
+                        // replaced below; defaults to the source set's one, until the compile
+                        // task is configured.
+                        ConfigurableFileCollection annotationProcessorPath =
+                            project.files(
+                                (Callable<FileCollection>)
+                                    () -> IMPL.getAnnotationProcessorPath(sourceSet));
+                        configureVerifyDeterminismTask(project, sourceSet);
+                        configureAnalyzeProcessorPathTask(
+                            project, sourceSet, annotationProcessorPath);
+                        configureConsolidateProcessorPathTask(
+                            project, sourceSet, annotationProcessorPath);
+                        configureValidateProcessorOptionsTask(project, sourceSet);
+                        configureProcessIsolatingProcessorsTask(project, sourceSet);
+                        configureAptWatch(project, sourceSet);
                       });
             });
     project
@@ -101,6 +164,7 @@ public class AptPlugin implements Plugin<Project> {
                             sourceSet.getCompileTaskName("groovy"),
                             GroovyCompile.class,
                             GroovyCompile::getOptions);
+                        configureProcessGroovyAnnotationsTask(project, sourceSet, groovy);
                       });
             });
   }
@@ -115,11 +179,65 @@ public class AptPlugin implements Plugin<Project> {
         task -> {
           CompileOptions compileOptions = getCompileOptions.apply(task);
           final AptOptions aptOptions = IMPL.createAptOptions();
+          aptOptions.setTemporaryDir(task::getTemporaryDir);
+          aptOptions.setProjectDir(project.getProjectDir());
+          if (task instanceof JavaCompile) {
+            // the in-process compiler API doesn't expand argument files
+            aptOptions.setArgumentFileSupported(
+                () ->
+                    compileOptions.isFork()
+                        && compileOptions.getForkOptions().getExecutable() != null);
+          }
+          final Supplier<FileCollection> processorPath =
+              () -> {
+                FileCollection annotationProcessorPath =
+                    compileOptions.getAnnotationProcessorPath();
+                return annotationProcessorPath != null
+                    ? annotationProcessorPath
+                    : task.getClasspath();
+              };
+          aptOptions.setAnnotationProcessorPath(processorPath);
           task.getExtensions().add(AptOptions.class, "aptOptions", aptOptions);
+          if (task instanceof JavaCompile) {
+            configureProcessorClassLoadersRelease(project, task, compileOptions, processorPath);
+          }
+          task.getInputs()
+              .files((Callable<Object>) aptOptions::getProcessorArgsFiles)
+              .withPropertyName("aptOptions.processorArgsFiles")
+              .withPathSensitivity(PathSensitivity.RELATIVE);
           IMPL.configureCompileTask(task, compileOptions, aptOptions);
         });
   }
 
+  /**
+   * When javac runs in-process, finds the processor class loaders created by Gradle that are left
+   * referenced by threads started while the task ran, to reset those threads' context class loader
+   * and report leaks, depending on the project properties.
+   */
+  private static void configureProcessorClassLoadersRelease(
+      Project project,
+      Task task,
+      CompileOptions compileOptions,
+      Supplier<FileCollection> processorPath) {
+    final AtomicReference<Set<Thread>> preexistingThreads = new AtomicReference<>();
+    task.doFirst(
+        "snapshot threads before running annotation processors",
+        task1 -> {
+          ProcessorClassLoaders.reportLeaks(project, task.getLogger());
+          preexistingThreads.set(
+              compileOptions.isFork() ? null : ProcessorClassLoaders.snapshotThreads(project));
+        });
+    task.doLast(
+        "release annotation processor class loaders",
+        task1 -> {
+          Set<Thread> threads = preexistingThreads.getAndSet(null);
+          if (threads != null) {
+            ProcessorClassLoaders.releaseCompileTaskClassLoaders(
+                project, task.getPath(), threads, processorPath.get());
+          }
+        });
+  }
+
   private <T extends AbstractCompile> void configureCompileTaskForSourceSet(
       final Project project,
       final SourceSet sourceSet,
@@ -147,10 +265,396 @@ public class AptPlugin implements Plugin<Project> {
         taskOrProvider);
   }
 
+  private void configureVerifyDeterminismTask(final Project project, final SourceSet sourceSet) {
+    IMPL.createTask(
+        project,
+        sourceSet.getTaskName("verify", "annotationProcessorDeterminism"),
+        VerifyAnnotationProcessorDeterminism.class,
+        task -> {
+          task.setGroup(JavaBasePlugin.VERIFICATION_GROUP);
+          task.setDescription(
+              "Runs annotation processors twice over the "
+                  + sourceSet.getName()
+                  + " Java sources and compares their outputs.");
+          final Supplier<JavaCompile> compileTask =
+              IMPL.getTask(project, JavaCompile.class, sourceSet.getCompileJavaTaskName());
+          final Supplier<AptOptions> aptOptions =
+              () -> compileTask.get().getExtensions().getByType(AptOptions.class);
+          task.setSource(project.files((Callable<Object>) () -> compileTask.get().getSource()));
+          task.setClasspath(
+              project.files((Callable<Object>) () -> compileTask.get().getClasspath()));
+          task.setAnnotationProcessorPath(
+              project.files(
+                  (Callable<FileCollection>)
+                      () -> {
+                        FileCollection annotationProcessorPath =
+                            compileTask.get().getOptions().getAnnotationProcessorPath();
+                        return annotationProcessorPath != null
+                            ? annotationProcessorPath
+                            : compileTask.get().getClasspath();
+                      }));
+          task.setCompileOptionsSupplier(() -> compileTask.get().getOptions());
+          task.setAptOptionsSupplier(aptOptions);
+          task.onlyIf(task1 -> aptOptions.get().isAnnotationProcessing());
+        });
+  }
+
+  private void configureAnalyzeProcessorPathTask(
+      final Project project,
+      final SourceSet sourceSet,
+      final FileCollection annotationProcessorPath) {
+    final String taskName = sourceSet.getTaskName("analyze", "annotationProcessorPath");
+    IMPL.createTask(
+        project,
+        taskName,
+        AnalyzeAnnotationProcessorPath.class,
+        task -> {
+          task.setGroup(HelpTasksPlugin.HELP_GROUP);
+          task.setDescription(
+              "Finds the entries of the "
+                  + sourceSet.getName()
+                  + " annotation processor path that annotation processors actually use.");
+          final Supplier<JavaCompile> compileTask =
+              IMPL.getTask(project, JavaCompile.class, sourceSet.getCompileJavaTaskName());
+          task.setSource(project.files((Callable<Object>) () -> compileTask.get().getSource()));
+          task.setClasspath(
+              project.files((Callable<Object>) () -> compileTask.get().getClasspath()));
+          // The path that is pruned, rather than the pruned (or consolidated) one
+          task.setAnnotationProcessorPath(annotationProcessorPath);
+          task.setReportFile(
+              new File(
+                  project.getBuildDir(),
+                  "reports/apt/" + sourceSet.getName() + "/annotationProcessorPath.txt"));
+          task.setCompileOptionsSupplier(() -> compileTask.get().getOptions());
+          task.setAptOptionsSupplier(
+              () -> compileTask.get().getExtensions().getByType(AptOptions.class));
+        });
+  }
+
+  /**
+   * Returns the annotation processor path of the source set, pruned of unused entries if the
+   * analysis task is configured to do so.
+   */
+  private FileCollection getPrunedAnnotationProcessorPath(
+      final Project project, final SourceSet sourceSet, FileCollection annotationProcessorPath) {
+    final Supplier<AnalyzeAnnotationProcessorPath> analyzeTaskSupplier =
+        IMPL.getTask(
+            project,
+            AnalyzeAnnotationProcessorPath.class,
+            sourceSet.getTaskName("analyze", "annotationProcessorPath"));
+    // Only used for its build dependencies, when pruning is enabled
+    Callable<Object> analyzeTaskIfPruning =
+        () -> {
+          AnalyzeAnnotationProcessorPath analyzeTask = analyzeTaskSupplier.get();
+          return analyzeTask.isPrune() ? analyzeTask : Collections.emptyList();
+        };
+    return project
+        .files(
+            (Callable<FileCollection>)
+                () -> {
+                  AnalyzeAnnotationProcessorPath analyzeTask = analyzeTaskSupplier.get();
+                  return analyzeTask.isPrune()
+                      ? analyzeTask.prune(annotationProcessorPath)
+                      : annotationProcessorPath;
+                })
+        .builtBy(analyzeTaskIfPruning);
+  }
+
+  private void configureConsolidateProcessorPathTask(
+      final Project project,
+      final SourceSet sourceSet,
+      final ConfigurableFileCollection annotationProcessorPath) {
+    final String taskName = sourceSet.getTaskName("consolidate", "annotationProcessorPath");
+    final FileCollection prunedAnnotationProcessorPath =
+        getPrunedAnnotationProcessorPath(project, sourceSet, annotationProcessorPath);
+    IMPL.createTask(
+        project,
+        taskName,
+        ConsolidateAnnotationProcessorPath.class,
+        task -> {
+          task.setDescription(
+              "Merges the "
+                  + sourceSet.getName()
+                  + " annotation processor path into a single jar.");
+          task.setAnnotationProcessorPath(prunedAnnotationProcessorPath);
+        });
+    final Supplier<ConsolidateAnnotationProcessorPath> consolidateTaskSupplier =
+        IMPL.getTask(project, ConsolidateAnnotationProcessorPath.class, taskName);
+    IMPL.configureTask(
+        project,
+        JavaCompile.class,
+        sourceSet.getCompileJavaTaskName(),
+        task -> {
+          // Keep any value configured before, rather than the source set's default
+          FileCollection configuredAnnotationProcessorPath =
+              task.getOptions().getAnnotationProcessorPath();
+          if (configuredAnnotationProcessorPath != null) {
+            annotationProcessorPath.setFrom(configuredAnnotationProcessorPath);
+          }
+          task.getOptions()
+              .setAnnotationProcessorPath(
+                  project.files(
+                      (Callable<Object>)
+                          () -> {
+                            Task consolidateTask = consolidateTaskSupplier.get();
+                            // the task outputs, built by the task
+                            return consolidateTask.getEnabled()
+                                ? consolidateTask
+                                : prunedAnnotationProcessorPath;
+                          }));
+        });
+  }
+
+  private void configureValidateProcessorOptionsTask(
+      final Project project, final SourceSet sourceSet) {
+    final String taskName = sourceSet.getTaskName("validate", "annotationProcessorOptions");
+    IMPL.createTask(
+        project,
+        taskName,
+        ValidateAnnotationProcessorOptions.class,
+        task -> {
+          task.setDescription(
+              "Checks that the "
+                  + sourceSet.getName()
+                  + " processor options are supported by the annotation processors.");
+          final Supplier<JavaCompile> compileTask =
+              IMPL.getTask(project, JavaCompile.class, sourceSet.getCompileJavaTaskName());
+          // The processors actually used by the compile task, e.g. from the consolidated jar
+          task.setAnnotationProcessorPath(
+              project.files(
+                  (Callable<FileCollection>)
+                      () -> {
+                        FileCollection annotationProcessorPath =
+                            compileTask.get().getOptions().getAnnotationProcessorPath();
+                        return annotationProcessorPath != null
+                            ? annotationProcessorPath
+                            : compileTask.get().getClasspath();
+                      }));
+          task.setAptOptionsSupplier(
+              () -> compileTask.get().getExtensions().getByType(AptOptions.class));
+        });
+    final Supplier<ValidateAnnotationProcessorOptions> validateTask =
+        IMPL.getTask(project, ValidateAnnotationProcessorOptions.class, taskName);
+    IMPL.configureTask(
+        project,
+        JavaCompile.class,
+        sourceSet.getCompileJavaTaskName(),
+        task ->
+            task.dependsOn(
+                (Callable<Object>)
+                    () ->
+                        validateTask.get().getEnabled()
+                            ? validateTask.get()
+                            : Collections.emptyList()));
+  }
+
+  private void configureProcessIsolatingProcessorsTask(
+      final Project project, final SourceSet sourceSet) {
+    final String taskName = sourceSet.getTaskName("process", "isolatingAnnotationProcessors");
+    final Supplier<JavaCompile> compileTask =
+        IMPL.getTask(project, JavaCompile.class, sourceSet.getCompileJavaTaskName());
+    final Supplier<AptOptions> compileTaskAptOptions =
+        () -> compileTask.get().getExtensions().getByType(AptOptions.class);
+    IMPL.createTask(
+        project,
+        taskName,
+        ProcessIsolatingAnnotationProcessors.class,
+        task -> {
+          task.setDescription(
+              "Runs isolating annotation processors over partitions of the "
+                  + sourceSet.getName()
+                  + " Java sources in parallel (experimental).");
+          // not the compile task's source, as it includes the outputs of this task
+          task.setSource(sourceSet.getJava());
+          task.setSourcepath(
+              project.files((Callable<Object>) () -> sourceSet.getJava().getSrcDirs()));
+          task.setClasspath(
+              project.files((Callable<Object>) () -> compileTask.get().getClasspath()));
+          task.setAnnotationProcessorPath(
+              project.files(
+                  (Callable<FileCollection>)
+                      () -> compileTask.get().getOptions().getAnnotationProcessorPath()));
+          task.setGeneratedSourcesDirectory(
+              new File(
+                  project.getBuildDir(),
+                  "generated/sources/isolatingAnnotationProcessors/" + sourceSet.getName()));
+          task.setGeneratedResourcesDirectory(
+              new File(
+                  project.getBuildDir(),
+                  "generated/resources/isolatingAnnotationProcessors/" + sourceSet.getName()));
+          task.setCompileOptionsSupplier(() -> compileTask.get().getOptions());
+          task.setAptOptionsSupplier(compileTaskAptOptions);
+          task.onlyIf(task1 -> compileTaskAptOptions.get().isParallelIsolatingProcessing());
+        });
+    // Only create the task when the compile task enables it
+    final Supplier<ProcessIsolatingAnnotationProcessors> processTask =
+        IMPL.getTask(project, ProcessIsolatingAnnotationProcessors.class, taskName);
+    IMPL.configureTask(
+        project,
+        JavaCompile.class,
+        sourceSet.getCompileJavaTaskName(),
+        task -> {
+          AptOptions aptOptions = task.getExtensions().getByType(AptOptions.class);
+          aptOptions.setExcludedProcessors(
+              () ->
+                  aptOptions.isParallelIsolatingProcessing()
+                      ? processTask.get().getIsolatingProcessors()
+                      : Collections.emptyList());
+          task.getInputs()
+              .property(
+                  "aptOptions.excludedProcessors",
+                  (Callable<Object>) aptOptions::getExcludedProcessors);
+          task.source(
+              (Callable<Object>)
+                  () ->
+                      aptOptions.isParallelIsolatingProcessing()
+                          ? project
+                              .files(processTask.get().getGeneratedSourcesDirectory())
+                              .builtBy(processTask.get())
+                          : Collections.emptyList());
+        });
+    Callable<Object> generatedResourcesDir =
+        () ->
+            compileTaskAptOptions.get().isParallelIsolatingProcessing()
+                ? project
+                    .files(processTask.get().getGeneratedResourcesDirectory())
+                    .builtBy(processTask.get())
+                : Collections.emptyList();
+    addGeneratedResourcesDir(sourceSet, generatedResourcesDir);
+  }
+
+  private void configureAptWatch(final Project project, final SourceSet sourceSet) {
+    IMPL.configureTask(
+        project,
+        AptWatch.class,
+        "aptWatch",
+        task ->
+            task.watch(
+                sourceSet.getName(),
+                IMPL.getTask(project, JavaCompile.class, sourceSet.getCompileJavaTaskName()),
+                project.files((Callable<Object>) () -> sourceSet.getJava().getSrcDirs())));
+  }
+
+  private void configureProcessGroovyAnnotationsTask(
+      final Project project, final SourceSet sourceSet, final SourceDirectorySet groovy) {
+    final String compileTaskName = sourceSet.getCompileTaskName("groovy");
+    final String taskName = sourceSet.getTaskName("process", "groovyAnnotations");
+    final Supplier<GroovyCompile> compileTask =
+        IMPL.getTask(project, GroovyCompile.class, compileTaskName);
+    final Supplier<AptOptions> compileTaskAptOptions =
+        () -> compileTask.get().getExtensions().getByType(AptOptions.class);
+    IMPL.createTask(
+        project,
+        taskName,
+        ProcessGroovyAnnotations.class,
+        task -> {
+          task.setDescription(
+              "Runs annotation processors over a subset of the "
+                  + sourceSet.getName()
+                  + " Groovy sources, skipping Groovy stubs.");
+          task.setSource(
+              project.files(
+                  (Callable<Object>)
+                      () -> {
+                        List<String> includes = compileTaskAptOptions.get().getProcessingIncludes();
+                        return includes == null
+                            ? Collections.emptyList()
+                            : groovy.matching(patterns -> patterns.include(includes));
+                      }));
+          task.setSourcepath(project.files((Callable<Object>) groovy::getSrcDirs));
+          task.setClasspath(
+              project.files((Callable<Object>) () -> compileTask.get().getClasspath()));
+          task.setAnnotationProcessorPath(
+              project.files(
+                  (Callable<FileCollection>)
+                      () -> compileTask.get().getOptions().getAnnotationProcessorPath()));
+          task.setGeneratedSourcesDirectory(
+              new File(
+                  project.getBuildDir(),
+                  "generated/sources/groovyAnnotations/" + sourceSet.getName()));
+          task.setGeneratedResourcesDirectory(
+              new File(
+                  project.getBuildDir(),
+                  "generated/resources/groovyAnnotations/" + sourceSet.getName()));
+          task.setCompileOptionsSupplier(() -> compileTask.get().getOptions());
+          task.setAptOptionsSupplier(compileTaskAptOptions);
+          task.onlyIf(
+              task1 ->
+                  compileTaskAptOptions.get().isAnnotationProcessing()
+                      && compileTaskAptOptions.get().getProcessingIncludes() != null);
+        });
+    // Only create the task when the compile task enables it
+    final Supplier<ProcessGroovyAnnotations> processTask =
+        IMPL.getTask(project, ProcessGroovyAnnotations.class, taskName);
+    IMPL.configureTask(
+        project,
+        GroovyCompile.class,
+        compileTaskName,
+        task -> {
+          AptOptions aptOptions = task.getExtensions().getByType(AptOptions.class);
+          // all processors run in the other task
+          aptOptions.setExcludedProcessors(
+              () -> {
+                Collection<String> processors =
+                    aptOptions.getProcessingIncludes() == null
+                        ? null
+                        : aptOptions.getProcessorNamesInUse();
+                return processors == null ? Collections.emptyList() : processors;
+              });
+          task.getInputs()
+              .property(
+                  "aptOptions.excludedProcessors",
+                  (Callable<Object>) aptOptions::getExcludedProcessors);
+          task.source(
+              (Callable<Object>)
+                  () ->
+                      aptOptions.getProcessingIncludes() == null
+                          ? Collections.emptyList()
+                          : project
+                              .files(processTask.get().getGeneratedSourcesDirectory())
+                              .builtBy(processTask.get()));
+        });
+    Callable<Object> generatedResourcesDir =
+        () ->
+            compileTaskAptOptions.get().getProcessingIncludes() == null
+                ? Collections.emptyList()
+                : project
+                    .files(processTask.get().getGeneratedResourcesDirectory())
+                    .builtBy(processTask.get());
+    addGeneratedResourcesDir(sourceSet, generatedResourcesDir);
+  }
+
   private void configureSourceSet(Project project, SourceSet sourceSet) {
     IMPL.ensureConfigurations(project, sourceSet);
 
     IMPL.setupGeneratedSourcesDirs(project, sourceSet.getOutput());
+
+    ((ExtensionAware) sourceSet.getOutput())
+        .getExtensions()
+        .add(FileCollection.class, SOURCE_SET_OUTPUT_GENERATED_RESOURCES_DIRS, project.files());
+  }
+
+  /**
+   * Registers the resources directory of a task running annotation processors as an output
+   * directory of the source set, and adds it to its generated resources dirs.
+   */
+  private static void addGeneratedResourcesDir(
+      SourceSet sourceSet, Callable<Object> generatedResourcesDir) {
+    sourceSet
+        .getOutput()
+        .dir(Collections.singletonMap("builtBy", generatedResourcesDir), generatedResourcesDir);
+    ((ExtensionAware) sourceSet.getOutput())
+        .getExtensions()
+        .<ConfigurableFileCollection>configure(
+            SOURCE_SET_OUTPUT_GENERATED_RESOURCES_DIRS,
+            files -> files.from(generatedResourcesDir));
+  }
+
+  static FileCollection getGeneratedResourcesDirs(SourceSetOutput sourceSetOutput) {
+    return (FileCollection)
+        ((ExtensionAware) sourceSetOutput)
+            .getExtensions()
+            .getByName(SOURCE_SET_OUTPUT_GENERATED_RESOURCES_DIRS);
   }
 
   abstract static class Impl {
@@ -180,6 +684,13 @@ public class AptPlugin implements Plugin<Project> {
     protected abstract <T extends Task> Object configureTask(
         Project project, Class<T> taskClass, String taskName, Action<T> configure);
 
+    /**
+     * Returns a supplier of the given task, that doesn't create or configure it until called (when
+     * the Gradle version supports it).
+     */
+    protected abstract <T extends Task> Supplier<T> getTask(
+        Project project, Class<T> taskClass, String taskName);
+
     protected abstract AptOptions createAptOptions();
 
     protected abstract void configureCompileTask(
@@ -195,6 +706,9 @@ public class AptPlugin implements Plugin<Project> {
 
     abstract String getAnnotationProcessorConfigurationName(SourceSet sourceSet);
 
+    @Nullable
+    abstract FileCollection getAnnotationProcessorPath(SourceSet sourceSet);
+
     abstract void setupGeneratedSourcesDirs(Project project, SourceSetOutput sourceSetOutput);
 
     abstract <T extends AbstractCompile> void addSourceSetOutputGeneratedSourcesDir(
@@ -209,9 +723,23 @@ public class AptPlugin implements Plugin<Project> {
   }
 
   public static class AptOptions implements HasPublicType {
+    private static final Logger logger = Logging.getLogger(AptOptions.class);
+
     private boolean annotationProcessing = true;
     @Nullable private List<?> processors = new ArrayList<>();
     @Nullable private Map<String, ?> processorArgs = new LinkedHashMap<>();
+    private boolean useArgumentFile;
+    @Nullable private Supplier<File> temporaryDir;
+    @Nullable private File projectDir;
+    @Nullable private BooleanSupplier argumentFileSupported;
+    private boolean argumentFileWarned;
+    @Nullable private Supplier<FileCollection> annotationProcessorPath;
+    @Nullable private Supplier<Collection<String>> excludedProcessors;
+    @Nullable private List<String> processingIncludes;
+    private boolean parallelIsolatingProcessing;
+    private final Map<String, ProcessorOptions> processorOptions = new LinkedHashMap<>();
+    @Nullable private List<String> discoveredProcessorNamesKey;
+    @Nullable private Collection<String> discoveredProcessorNames;
 
     @Override
     public TypeOf<?> getPublicType() {
@@ -238,8 +766,17 @@ public class AptPlugin implements Plugin<Project> {
       this.processors = processors;
     }
 
-    @Input
-    @Optional
+    /**
+     * Returns the annotation processor options.
+     *
+     * <p>Values can be {@link Provider}s or {@link Callable}s, in which case they are only resolved
+     * when the compile task is about to run. Values that resolve to files ({@link File}, {@link
+     * FileCollection}, {@link RegularFile} or {@link Directory}) are passed as absolute paths and
+     * tracked as task inputs, such that tasks producing them are automatically depended on; only
+     * their paths relative to the project directory and their contents are part of the task inputs
+     * though, not their absolute paths, so the build cache stays relocatable.
+     */
+    @Internal
     @Nullable
     public Map<String, ?> getProcessorArgs() {
       return processorArgs;
@@ -249,16 +786,306 @@ public class AptPlugin implements Plugin<Project> {
       this.processorArgs = processorArgs;
     }
 
+    /**
+     * Returns the annotation processor options scoped to the given processor, creating them if
+     * needed.
+     *
+     * <p>Those options are only passed to javac when the processor is in use: either listed in
+     * {@link #getProcessors()}, or discovered in the annotation processor path when no processor
+     * is listed. When processors are listed, changing options of another processor thus doesn't
+     * invalidate the compile task. When they're discovered, the options of all processors are
+     * tracked as task inputs, as knowing which processors are in use would mean opening the jars
+     * of the annotation processor path on every up-to-date check. Files of file-valued options
+     * are always tracked as task inputs.
+     */
+    public ProcessorOptions processor(String processorName) {
+      return processorOptions.computeIfAbsent(processorName, ProcessorOptions::new);
+    }
+
+    public ProcessorOptions processor(
+        String processorName, Action<? super ProcessorOptions> configure) {
+      ProcessorOptions options = processor(processorName);
+      configure.execute(options);
+      return options;
+    }
+
+    public ProcessorOptions processor(String processorName, Closure<?> closure) {
+      return ConfigureUtil.configure(closure, processor(processorName));
+    }
+
+    /**
+     * Returns the annotation processor options, including those scoped to processors that may be
+     * in use, with their values resolved to strings, as tracked as task inputs.
+     *
+     * <p>The processors in use are only known without inspecting the annotation processor path when
+     * they're listed in {@link #getProcessors()}; otherwise, options scoped to any processor are
+     * included. File values are represented by their path relative to the project directory.
+     */
+    @Input
+    @Optional
+    @Nullable
+    public Map<String, String> getEffectiveProcessorArgs() {
+      return getEffectiveProcessorArgs(getProcessorOptionsListedInUse(), this::asInputValue);
+    }
+
+    /**
+     * Same as {@link #getEffectiveProcessorArgs()} but with file values resolved to their absolute
+     * paths, as passed to javac.
+     */
+    @Nullable
+    Map<String, String> getResolvedProcessorArgs() {
+      return getEffectiveProcessorArgs(getProcessorOptionsInUse(), AptOptions::asArgumentValue);
+    }
+
+    @Nullable
+    private Map<String, String> getEffectiveProcessorArgs(
+        List<ProcessorOptions> processorOptionsInUse, Function<Object, String> toValue) {
+      if (processorArgs == null && processorOptionsInUse.isEmpty()) {
+        return null;
+      }
+      Map<String, String> effectiveProcessorArgs = new LinkedHashMap<>();
+      if (processorArgs != null) {
+        for (Map.Entry<String, ?> entry : processorArgs.entrySet()) {
+          effectiveProcessorArgs.put(entry.getKey(), toValue.apply(entry.getValue()));
+        }
+      }
+      for (ProcessorOptions options : processorOptionsInUse) {
+        for (Map.Entry<String, ?> entry : options.getArgs().entrySet()) {
+          effectiveProcessorArgs.put(entry.getKey(), toValue.apply(entry.getValue()));
+        }
+      }
+      return effectiveProcessorArgs;
+    }
+
+    /**
+     * Returns the names of the processors in use: either listed in {@link #getProcessors()}, or
+     * discovered in the annotation processor path. Returns {@code null} if they cannot be known.
+     */
+    @Nullable
+    Collection<String> getProcessorNamesInUse() {
+      if (processors != null && !processors.isEmpty()) {
+        List<String> processorsInUse = new ArrayList<>();
+        for (Object processor : processors) {
+          processorsInUse.add(String.valueOf(processor));
+        }
+        return processorsInUse;
+      } else if (annotationProcessorPath != null) {
+        return discoverProcessorNames(annotationProcessorPath.get());
+      } else {
+        return null;
+      }
+    }
+
+    /**
+     * Discovers the processors declared in the annotation processor path, reusing the previous
+     * result as long as the entries of the path haven't changed.
+     */
+    private Collection<String> discoverProcessorNames(FileCollection annotationProcessorPath) {
+      List<String> key = fingerprint(annotationProcessorPath);
+      Collection<String> names = discoveredProcessorNames;
+      if (names == null || !key.equals(discoveredProcessorNamesKey)) {
+        names = AnnotationProcessing.discoverProcessorNames(annotationProcessorPath);
+        discoveredProcessorNames = names;
+        discoveredProcessorNamesKey = key;
+      }
+      return names;
+    }
+
+    private static List<String> fingerprint(FileCollection annotationProcessorPath) {
+      List<String> key = new ArrayList<>();
+      for (File entry : annotationProcessorPath) {
+        key.add(entry.getAbsolutePath() + ':' + entry.length() + ':' + entry.lastModified());
+      }
+      return key;
+    }
+
+    /**
+     * Returns the annotation processor options, including those scoped to any processor, whether
+     * in use or not, with their values left unresolved.
+     */
+    Map<String, ?> getAllProcessorArgs() {
+      Map<String, Object> allProcessorArgs = new LinkedHashMap<>();
+      if (processorArgs != null) {
+        allProcessorArgs.putAll(processorArgs);
+      }
+      for (ProcessorOptions options : processorOptions.values()) {
+        allProcessorArgs.putAll(options.getArgs());
+      }
+      return allProcessorArgs;
+    }
+
+    List<ProcessorOptions> getProcessorOptionsInUse() {
+      return getProcessorOptionsInUse(this::getProcessorNamesInUse);
+    }
+
+    /**
+     * Same as {@link #getProcessorOptionsInUse()} but without inspecting the annotation processor
+     * path: when no processor is listed, the options of all processors are returned.
+     */
+    private List<ProcessorOptions> getProcessorOptionsListedInUse() {
+      return getProcessorOptionsInUse(
+          () -> processors == null || processors.isEmpty() ? null : getProcessorNamesInUse());
+    }
+
+    private List<ProcessorOptions> getProcessorOptionsInUse(
+        Supplier<Collection<String>> getProcessorNamesInUse) {
+      if (processorOptions.isEmpty()) {
+        return Collections.emptyList();
+      }
+      Collection<String> processorsInUse = getProcessorNamesInUse.get();
+      if (processorsInUse == null) {
+        return new ArrayList<>(processorOptions.values());
+      }
+      List<ProcessorOptions> processorOptionsInUse = new ArrayList<>();
+      for (ProcessorOptions options : processorOptions.values()) {
+        if (processorsInUse.contains(options.getProcessorName())) {
+          processorOptionsInUse.add(options);
+        }
+      }
+      return processorOptionsInUse;
+    }
+
+    /**
+     * Whether {@code -processor} and {@code -A} arguments are passed through a javac argument file
+     * (written to the task's temporary directory) rather than on the command line.
+     *
+     * <p>This only works when javac is run from the command line, i.e. when forking with {@code
+     * options.forkOptions.executable}; the in-process compiler API doesn't expand argument files,
+     * so the arguments are otherwise passed inline, with a warning.
+     */
+    @Internal
+    public boolean isUseArgumentFile() {
+      return useArgumentFile;
+    }
+
+    public void setUseArgumentFile(boolean useArgumentFile) {
+      this.useArgumentFile = useArgumentFile;
+    }
+
+    /**
+     * For {@code GroovyCompile} tasks only, the Ant-style patterns of the sources that annotation
+     * processors run on, e.g. <code>['**&#47;*.java']</code> to skip the Java stubs generated for
+     * Groovy sources. Defaults to {@code null}, meaning that all sources, stubs included, are
+     * processed.
+     *
+     * <p>When set, annotation processors run in a separate task before the compile task, which
+     * then compiles their outputs without running them again.
+     */
+    @Internal
+    @Nullable
+    public List<String> getProcessingIncludes() {
+      return processingIncludes;
+    }
+
+    public void setProcessingIncludes(@Nullable List<String> processingIncludes) {
+      this.processingIncludes = processingIncludes;
+    }
+
+    /**
+     * For {@code JavaCompile} tasks only, whether isolating annotation processors run in a separate
+     * task, over partitions of the sources in parallel, before the compile task (experimental).
+     * Defaults to {@code false}.
+     *
+     * <p>This only happens when all the processors in use are isolating; the compile task then
+     * compiles their outputs without running them again.
+     */
+    @Internal
+    public boolean isParallelIsolatingProcessing() {
+      return parallelIsolatingProcessing;
+    }
+
+    public void setParallelIsolatingProcessing(boolean parallelIsolatingProcessing) {
+      this.parallelIsolatingProcessing = parallelIsolatingProcessing;
+    }
+
+    void setTemporaryDir(Supplier<File> temporaryDir) {
+      this.temporaryDir = temporaryDir;
+    }
+
+    void setProjectDir(File projectDir) {
+      this.projectDir = projectDir;
+    }
+
+    /** Sets whether javac is run from the command line, and can thus read argument files. */
+    void setArgumentFileSupported(BooleanSupplier argumentFileSupported) {
+      this.argumentFileSupported = argumentFileSupported;
+    }
+
+    void setAnnotationProcessorPath(Supplier<FileCollection> annotationProcessorPath) {
+      this.annotationProcessorPath = annotationProcessorPath;
+    }
+
+    /** Sets the processors run by another task, that the compile task shouldn't run. */
+    void setExcludedProcessors(Supplier<Collection<String>> excludedProcessors) {
+      this.excludedProcessors = excludedProcessors;
+    }
+
+    Collection<String> getExcludedProcessors() {
+      return excludedProcessors == null ? Collections.emptyList() : excludedProcessors.get();
+    }
+
+    List<Object> getProcessorArgsFiles() {
+      List<Object> files = new ArrayList<>();
+      if (processorArgs != null) {
+        addFiles(files, processorArgs.values());
+      }
+      // Don't resolve the annotation processor path to select processors in use, as this is
+      // called when building the task graph.
+      for (ProcessorOptions options : processorOptions.values()) {
+        addFiles(files, options.getArgs().values());
+      }
+      return files;
+    }
+
+    private static void addFiles(List<Object> files, Collection<?> values) {
+      for (Object value : values) {
+        if (value instanceof Provider) {
+          // Mapping the provider keeps the tasks producing its value, without resolving it yet
+          files.add(((Provider<?>) value).map(AptOptions::filesOrEmpty));
+        } else if (value instanceof Callable) {
+          files.add((Callable<Object>) () -> filesOrEmpty(value));
+        } else if (isFile(value)) {
+          files.add(value);
+        }
+      }
+    }
+
+    private static Object filesOrEmpty(@Nullable Object value) {
+      Object unpacked = unpack(value);
+      return unpacked != null && isFile(unpacked) ? unpacked : Collections.emptyList();
+    }
+
+    private static boolean isFile(@Nullable Object value) {
+      return value instanceof File
+          || value instanceof FileCollection
+          || value instanceof RegularFile
+          || value instanceof Directory;
+    }
+
     protected List<String> asArguments() {
       ArrayList<String> arguments = new ArrayList<>();
       if (!annotationProcessing) {
         arguments.add("-proc:none");
       }
-      if (processors != null && !processors.isEmpty()) {
-        arguments.add("-processor");
+      ArrayList<String> processorArguments = new ArrayList<>();
+      List<?> effectiveProcessors = processors;
+      Collection<String> excludedProcessors = getExcludedProcessors();
+      if (!excludedProcessors.isEmpty()) {
+        Collection<String> processorsInUse = getProcessorNamesInUse();
+        if (processorsInUse != null) {
+          List<String> remainingProcessors = new ArrayList<>(processorsInUse);
+          remainingProcessors.removeAll(excludedProcessors);
+          if (remainingProcessors.isEmpty() && annotationProcessing) {
+            arguments.add("-proc:none");
+          }
+          effectiveProcessors = remainingProcessors;
+        }
+      }
+      if (effectiveProcessors != null && !effectiveProcessors.isEmpty()) {
+        processorArguments.add("-processor");
         StringBuilder sb = new StringBuilder();
         boolean first = true;
-        for (Object processor : processors) {
+        for (Object processor : effectiveProcessors) {
           if (!first) {
             sb.append(',');
           } else {
@@ -266,15 +1093,185 @@ public class AptPlugin implements Plugin<Project> {
           }
           sb.append(processor);
         }
-        arguments.add(sb.toString());
+        processorArguments.add(sb.toString());
       }
-      if (processorArgs != null) {
-        for (Map.Entry<String, ?> entry : processorArgs.entrySet()) {
-          arguments.add("-A" + entry.getKey() + "=" + entry.getValue());
+      Map<String, String> effectiveProcessorArgs = getResolvedProcessorArgs();
+      if (effectiveProcessorArgs != null) {
+        for (Map.Entry<String, String> entry : effectiveProcessorArgs.entrySet()) {
+          processorArguments.add("-A" + entry.getKey() + "=" + entry.getValue());
         }
       }
+      Supplier<File> temporaryDir = this.temporaryDir;
+      if (useArgumentFile
+          && !processorArguments.isEmpty()
+          && temporaryDir != null
+          && isArgumentFileSupported()) {
+        File argumentFile = new File(temporaryDir.get(), "apt-arguments.txt");
+        writeArgumentFile(argumentFile, processorArguments);
+        arguments.add("@" + argumentFile.getAbsolutePath());
+      } else {
+        arguments.addAll(processorArguments);
+      }
       return arguments;
     }
+
+    private boolean isArgumentFileSupported() {
+      if (argumentFileSupported != null && argumentFileSupported.getAsBoolean()) {
+        return true;
+      }
+      if (!argumentFileWarned) {
+        argumentFileWarned = true;
+        logger.warn(
+            "aptOptions.useArgumentFile is ignored as javac is not run as an external process"
+                + " (options.fork with options.forkOptions.executable); passing arguments inline.");
+      }
+      return false;
+    }
+
+    private static void writeArgumentFile(File argumentFile, List<String> arguments) {
+      StringBuilder sb = new StringBuilder();
+      for (String argument : arguments) {
+        sb.append('"');
+        for (int i = 0; i < argument.length(); i++) {
+          char c = argument.charAt(i);
+          switch (c) {
+            case '\\':
+            case '"':
+              sb.append('\\').append(c);
+              break;
+            case '\n':
+              sb.append("\\n");
+              break;
+            case '\r':
+              sb.append("\\r");
+              break;
+            case '\t':
+              sb.append("\\t");
+              break;
+            case '\f':
+              sb.append("\\f");
+              break;
+            default:
+              sb.append(c);
+          }
+        }
+        sb.append("\"\n");
+      }
+      // javac reads argument files using the platform default encoding
+      byte[] content = sb.toString().getBytes(Charset.defaultCharset());
+      try {
+        // Only rewrite the file when its content changes
+        if (argumentFile.isFile()
+            && Arrays.equals(content, Files.readAllBytes(argumentFile.toPath()))) {
+          return;
+        }
+        Files.write(argumentFile.toPath(), content);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Nullable
+    static String asArgumentValue(@Nullable Object value) {
+      value = unpack(value);
+      if (value instanceof FileCollection) {
+        return ((FileCollection) value).getAsPath();
+      }
+      if (value instanceof RegularFile) {
+        value = ((RegularFile) value).getAsFile();
+      } else if (value instanceof Directory) {
+        value = ((Directory) value).getAsFile();
+      }
+      if (value instanceof File) {
+        return ((File) value).getAbsolutePath();
+      }
+      return value == null ? null : value.toString();
+    }
+
+    /**
+     * Same as {@link #asArgumentValue(Object)} except files are represented by their paths relative
+     * to the project directory, their contents being tracked separately, so task inputs don't
+     * depend on the location of the project. Files that cannot be made relative (e.g. on another
+     * drive) are represented by their names only.
+     */
+    @Nullable
+    private String asInputValue(@Nullable Object value) {
+      value = unpack(value);
+      if (value instanceof FileCollection) {
+        StringBuilder sb = new StringBuilder("<files");
+        for (File file : (FileCollection) value) {
+          sb.append(' ').append(relativePath(file));
+        }
+        return sb.append('>').toString();
+      }
+      if (value instanceof RegularFile) {
+        value = ((RegularFile) value).getAsFile();
+      } else if (value instanceof Directory) {
+        value = ((Directory) value).getAsFile();
+      }
+      if (value instanceof File) {
+        return "<file " + relativePath((File) value) + ">";
+      }
+      return value == null ? null : value.toString();
+    }
+
+    private String relativePath(File file) {
+      if (projectDir != null) {
+        try {
+          return projectDir
+              .toPath()
+              .relativize(file.getAbsoluteFile().toPath())
+              .toString()
+              .replace(File.separatorChar, '/');
+        } catch (IllegalArgumentException e) {
+          // different roots, e.g. on another drive on Windows
+        }
+      }
+      return file.getName();
+    }
+
+    @Nullable
+    private static Object unpack(@Nullable Object value) {
+      while (true) {
+        if (value instanceof Provider) {
+          value = ((Provider<?>) value).getOrNull();
+        } else if (value instanceof Callable) {
+          try {
+            value = ((Callable<?>) value).call();
+          } catch (Exception e) {
+            throw new GradleException("Could not resolve annotation processor option value", e);
+          }
+        } else {
+          return value;
+        }
+      }
+    }
+
+    /** Annotation processor options scoped to a given processor. */
+    public static class ProcessorOptions {
+      private final String processorName;
+      private final Map<String, Object> args = new LinkedHashMap<>();
+
+      ProcessorOptions(String processorName) {
+        this.processorName = processorName;
+      }
+
+      public String getProcessorName() {
+        return processorName;
+      }
+
+      /**
+       * Returns the (mutable) options for the processor. Values are handled the same as in {@link
+       * AptOptions#getProcessorArgs()}.
+       */
+      public Map<String, Object> getArgs() {
+        return args;
+      }
+
+      public void args(Map<String, ?> args) {
+        this.args.putAll(args);
+      }
+    }
   }
 
   public static final class AptSourceSetConvention {
@@ -18,6 +18,8 @@ package net.ltgt.gradle.apt;
 import java.io.File;
 import java.util.concurrent.Callable;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import org.gradle.api.Action;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
@@ -54,6 +56,12 @@ class AptPlugin43to44 extends AptPlugin.Impl {
     return project.getTasks().withType(taskClass).getByName(taskName, configure);
   }
 
+  @Override
+  protected <T extends Task> Supplier<T> getTask(
+      Project project, Class<T> taskClass, String taskName) {
+    return () -> project.getTasks().withType(taskClass).getByName(taskName);
+  }
+
   @Override
   protected AptPlugin.AptOptions createAptOptions() {
     return new AptPlugin.AptOptions();
@@ -72,7 +80,8 @@ class AptPlugin43to44 extends AptPlugin.Impl {
         .property("aptOptions.processors", (Callable<Object>) aptOptions::getProcessors)
         .optional(true);
     task.getInputs()
-        .property("aptOptions.processorArgs", (Callable<Object>) aptOptions::getProcessorArgs)
+        .property(
+            "aptOptions.processorArgs", (Callable<Object>) aptOptions::getEffectiveProcessorArgs)
         .optional(true);
 
     task.doFirst(
@@ -125,6 +134,15 @@ class AptPlugin43to44 extends AptPlugin.Impl {
     return sourceSet.getTaskName("", "annotationProcessor");
   }
 
+  @Override
+  @Nullable
+  FileCollection getAnnotationProcessorPath(SourceSet sourceSet) {
+    return ((HasConvention) sourceSet)
+        .getConvention()
+        .getPlugin(AptPlugin.AptSourceSetConvention.class)
+        .getAnnotationProcessorPath();
+  }
+
   @Override
   <T extends AbstractCompile> void addSourceSetOutputGeneratedSourcesDir(
       Project project,
@@ -19,6 +19,8 @@ import java.io.File;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import org.gradle.api.Action;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
@@ -55,6 +57,12 @@ class AptPlugin45 extends AptPlugin.Impl {
     return project.getTasks().withType(taskClass).getByName(taskName, configure);
   }
 
+  @Override
+  protected <T extends Task> Supplier<T> getTask(
+      Project project, Class<T> taskClass, String taskName) {
+    return () -> project.getTasks().withType(taskClass).getByName(taskName);
+  }
+
   @Override
   protected AptPlugin.AptOptions createAptOptions() {
     return new AptOptions45();
@@ -116,6 +124,15 @@ class AptPlugin45 extends AptPlugin.Impl {
     return sourceSet.getTaskName("", "annotationProcessor");
   }
 
+  @Override
+  @Nullable
+  FileCollection getAnnotationProcessorPath(SourceSet sourceSet) {
+    return ((HasConvention) sourceSet)
+        .getConvention()
+        .getPlugin(AptPlugin.AptSourceSetConvention.class)
+        .getAnnotationProcessorPath();
+  }
+
   @Override
   <T extends AbstractCompile> void addSourceSetOutputGeneratedSourcesDir(
       Project project,
@@ -19,6 +19,7 @@ import java.io.File;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import org.gradle.api.Action;
 import org.gradle.api.Named;
 import org.gradle.api.Project;
@@ -55,6 +56,12 @@ class AptPlugin46to48 extends AptPlugin.Impl {
     return project.getTasks().withType(taskClass).getByName(taskName, configure);
   }
 
+  @Override
+  protected <T extends Task> Supplier<T> getTask(
+      Project project, Class<T> taskClass, String taskName) {
+    return () -> project.getTasks().withType(taskClass).getByName(taskName);
+  }
+
   @Override
   protected AptPlugin.AptOptions createAptOptions() {
     return new AptOptions46to48();
@@ -93,6 +100,11 @@ class AptPlugin46to48 extends AptPlugin.Impl {
     return sourceSet.getAnnotationProcessorConfigurationName();
   }
 
+  @Override
+  FileCollection getAnnotationProcessorPath(SourceSet sourceSet) {
+    return sourceSet.getAnnotationProcessorPath();
+  }
+
   @Override
   <T extends AbstractCompile> void addSourceSetOutputGeneratedSourcesDir(
       Project project,
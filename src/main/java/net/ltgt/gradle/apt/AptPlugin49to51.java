@@ -19,6 +19,7 @@ import java.io.File;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import org.gradle.api.Action;
 import org.gradle.api.Named;
 import org.gradle.api.Project;
@@ -58,6 +59,12 @@ class AptPlugin49to51 extends AptPlugin.Impl {
     return task;
   }
 
+  @Override
+  protected <T extends Task> Supplier<T> getTask(
+      Project project, Class<T> taskClass, String taskName) {
+    return project.getTasks().withType(taskClass).named(taskName)::get;
+  }
+
   @Override
   protected AptPlugin.AptOptions createAptOptions() {
     return new AptOptions49to51();
@@ -96,6 +103,11 @@ class AptPlugin49to51 extends AptPlugin.Impl {
     return sourceSet.getAnnotationProcessorConfigurationName();
   }
 
+  @Override
+  FileCollection getAnnotationProcessorPath(SourceSet sourceSet) {
+    return sourceSet.getAnnotationProcessorPath();
+  }
+
   @Override
   <T extends AbstractCompile> void addSourceSetOutputGeneratedSourcesDir(
       Project project,
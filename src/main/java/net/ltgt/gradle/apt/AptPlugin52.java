@@ -17,6 +17,7 @@ package net.ltgt.gradle.apt;
 
 import java.util.List;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import org.gradle.api.Action;
 import org.gradle.api.Named;
 import org.gradle.api.Project;
@@ -52,6 +53,12 @@ class AptPlugin52 extends AptPlugin.Impl {
     return task;
   }
 
+  @Override
+  protected <T extends Task> Supplier<T> getTask(
+      Project project, Class<T> taskClass, String taskName) {
+    return project.getTasks().withType(taskClass).named(taskName)::get;
+  }
+
   @Override
   protected AptPlugin.AptOptions createAptOptions() {
     return new AptOptions52();
@@ -82,6 +89,11 @@ class AptPlugin52 extends AptPlugin.Impl {
     return sourceSet.getAnnotationProcessorConfigurationName();
   }
 
+  @Override
+  FileCollection getAnnotationProcessorPath(SourceSet sourceSet) {
+    return sourceSet.getAnnotationProcessorPath();
+  }
+
   @Override
   void setupGeneratedSourcesDirs(Project project, SourceSetOutput sourceSetOutput) {
     // no-op
@@ -0,0 +1,317 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.tools.Diagnostic;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.compile.JavaCompile;
+import org.gradle.api.tasks.options.Option;
+
+/**
+ * Keeps running, watching the sources of Java source sets, and re-runs annotation processors
+ * ({@code -proc:only}) whenever they change, updating the generated sources directories of the
+ * compile tasks so that IDEs watching them pick up the changes.
+ *
+ * <p>Processor class loaders are kept open between runs, so processors stay loaded and warm.
+ * Annotation processors write to a staging directory, which is then mirrored into the generated
+ * sources directories: only generated files whose content changed are rewritten, and stale ones are
+ * deleted. Generated resources are discarded.
+ */
+public class AptWatch extends DefaultTask {
+  private final Map<String, Supplier<JavaCompile>> compileTasks = new LinkedHashMap<>();
+  private final Map<String, FileCollection> sourceDirs = new HashMap<>();
+  private long quietPeriod = 200;
+  private boolean once;
+
+  public AptWatch() {
+    getOutputs().upToDateWhen(task -> false);
+  }
+
+  /**
+   * Adds the sources of the given compile task to the watched sources, watching the given source
+   * directories for changes.
+   */
+  void watch(String sourceSetName, Supplier<JavaCompile> compileTask, FileCollection sourceDirs) {
+    compileTasks.put(sourceSetName, compileTask);
+    this.sourceDirs.put(sourceSetName, sourceDirs);
+    dependsOn((Callable<Object>) () -> compileTask.get().getClasspath());
+    dependsOn((Callable<Object>) () -> compileTask.get().getOptions().getAnnotationProcessorPath());
+  }
+
+  /**
+   * How long to wait, in milliseconds, for other file changes before running annotation
+   * processors; defaults to 200.
+   */
+  @Internal
+  public long getQuietPeriod() {
+    return quietPeriod;
+  }
+
+  public void setQuietPeriod(long quietPeriod) {
+    this.quietPeriod = quietPeriod;
+  }
+
+  /** Whether to only process the sources once, without watching them; defaults to false. */
+  @Internal
+  public boolean isOnce() {
+    return once;
+  }
+
+  @Option(option = "once", description = "Process the sources once, without watching them.")
+  public void setOnce(boolean once) {
+    this.once = once;
+  }
+
+  @TaskAction
+  public void watch() throws IOException, InterruptedException {
+    List<WatchedSourceSet> watched = new ArrayList<>();
+    try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+      Map<WatchKey, WatchedSourceSet> keys = new HashMap<>();
+      for (Map.Entry<String, Supplier<JavaCompile>> entry : compileTasks.entrySet()) {
+        JavaCompile compileTask = entry.getValue().get();
+        AptPlugin.AptOptions aptOptions =
+            compileTask.getExtensions().getByType(AptPlugin.AptOptions.class);
+        File generatedSourcesDir =
+            compileTask.getOptions().getAnnotationProcessorGeneratedSourcesDirectory();
+        if (!aptOptions.isAnnotationProcessing() || generatedSourcesDir == null) {
+          continue;
+        }
+        WatchedSourceSet sourceSet =
+            new WatchedSourceSet(
+                entry.getKey(),
+                compileTask,
+                aptOptions,
+                generatedSourcesDir,
+                newClassLoader(compileTask));
+        watched.add(sourceSet);
+        FileCollection srcDirs = sourceDirs.get(entry.getKey());
+        if (srcDirs != null) {
+          for (File srcDir : srcDirs) {
+            if (srcDir.isDirectory()) {
+              register(watchService, srcDir.toPath(), sourceSet, keys);
+            }
+          }
+        }
+      }
+      if (watched.isEmpty()) {
+        getLogger().lifecycle("No annotation processing to watch.");
+        return;
+      }
+
+      for (WatchedSourceSet sourceSet : watched) {
+        process(sourceSet);
+      }
+      if (once) {
+        return;
+      }
+      getLogger().lifecycle("Watching sources for changes; press Ctrl+C to stop.");
+
+      while (!Thread.currentThread().isInterrupted()) {
+        WatchKey key = watchService.take();
+        Set<WatchedSourceSet> changed = new LinkedHashSet<>();
+        do {
+          WatchedSourceSet sourceSet = keys.get(key);
+          if (sourceSet != null) {
+            changed.add(sourceSet);
+            for (WatchEvent<?> event : key.pollEvents()) {
+              if (event.kind() == ENTRY_CREATE) {
+                Path path = ((Path) key.watchable()).resolve((Path) event.context());
+                if (Files.isDirectory(path)) {
+                  register(watchService, path, sourceSet, keys);
+                }
+              }
+            }
+          }
+          key.reset();
+          // wait for things to settle down, e.g. when switching branches
+          key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS);
+        } while (key != null);
+        for (WatchedSourceSet sourceSet : changed) {
+          process(sourceSet);
+        }
+      }
+    } finally {
+      for (WatchedSourceSet sourceSet : watched) {
+        ProcessorClassLoaders.release(getProject(), getPath(), sourceSet.processorClassLoader);
+      }
+    }
+  }
+
+  private static ProcessorClassLoaders.ProcessorClassLoader newClassLoader(
+      JavaCompile compileTask) {
+    Iterable<File> annotationProcessorPath = compileTask.getOptions().getAnnotationProcessorPath();
+    return ProcessorClassLoaders.create(
+        AnnotationProcessing.toUrls(
+            annotationProcessorPath != null
+                ? annotationProcessorPath
+                : compileTask.getClasspath()));
+  }
+
+  private static void register(
+      WatchService watchService,
+      Path dir,
+      WatchedSourceSet sourceSet,
+      Map<WatchKey, WatchedSourceSet> keys)
+      throws IOException {
+    List<Path> dirs;
+    try (Stream<Path> stream = Files.walk(dir)) {
+      dirs = stream.filter(Files::isDirectory).collect(Collectors.toList());
+    }
+    for (Path d : dirs) {
+      keys.put(d.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), sourceSet);
+    }
+  }
+
+  private void process(WatchedSourceSet sourceSet) throws IOException {
+    long start = System.nanoTime();
+    File stagingDir = new File(getTemporaryDir(), sourceSet.name);
+    getProject().delete(stagingDir);
+    List<Diagnostic<?>> errors = Collections.synchronizedList(new ArrayList<>());
+    AnnotationProcessing processing =
+        new AnnotationProcessing(
+            sourceSet.compileTask.getOptions(),
+            sourceSet.aptOptions,
+            sourceSet.compileTask.getClasspath(),
+            sourceSet.compileTask.getSource().getFiles());
+    processing.setDiagnosticListener(
+        diagnostic -> {
+          if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+            errors.add(diagnostic);
+          }
+        });
+    boolean success =
+        processing.run(
+            sourceSet.processorClassLoader,
+            Function.identity(),
+            new File(stagingDir, "sources"),
+            new File(stagingDir, "resources"));
+    if (!success) {
+      getLogger()
+          .warn(
+              "Annotation processing for {} failed, generated sources left untouched:\n{}",
+              sourceSet.name,
+              errors.stream().map(Object::toString).collect(Collectors.joining("\n")));
+      return;
+    }
+    int updated = sync(new File(stagingDir, "sources").toPath(), sourceSet.generatedSourcesDir);
+    getLogger()
+        .lifecycle(
+            "Processed {} sources in {} ms, {} generated files updated.",
+            sourceSet.name,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+            updated);
+  }
+
+  /** Mirrors {@code from} into {@code to}, only touching files that changed. */
+  private static int sync(Path from, File to) throws IOException {
+    Path target = to.toPath();
+    Files.createDirectories(target);
+    Set<Path> generated = new LinkedHashSet<>();
+    int updated = 0;
+    if (Files.isDirectory(from)) {
+      List<Path> files;
+      try (Stream<Path> stream = Files.walk(from)) {
+        files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+      }
+      for (Path file : files) {
+        Path relativePath = from.relativize(file);
+        generated.add(relativePath);
+        Path targetFile = target.resolve(relativePath);
+        if (Files.isRegularFile(targetFile)
+            && Arrays.equals(Files.readAllBytes(file), Files.readAllBytes(targetFile))) {
+          continue;
+        }
+        Files.createDirectories(targetFile.toAbsolutePath().getParent());
+        Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING);
+        updated++;
+      }
+    }
+    List<Path> existing;
+    try (Stream<Path> stream = Files.walk(target)) {
+      existing = stream.sorted(Collections.reverseOrder()).collect(Collectors.toList());
+    }
+    for (Path path : existing) {
+      if (path.equals(target)) {
+        continue;
+      }
+      if (Files.isRegularFile(path) && !generated.contains(target.relativize(path))) {
+        Files.delete(path);
+        updated++;
+      } else if (Files.isDirectory(path) && isEmpty(path)) {
+        Files.delete(path);
+      }
+    }
+    return updated;
+  }
+
+  private static boolean isEmpty(Path dir) throws IOException {
+    try (Stream<Path> children = Files.list(dir)) {
+      return !children.findAny().isPresent();
+    }
+  }
+
+  private static class WatchedSourceSet {
+    final String name;
+    final JavaCompile compileTask;
+    final AptPlugin.AptOptions aptOptions;
+    final File generatedSourcesDir;
+    final ProcessorClassLoaders.ProcessorClassLoader processorClassLoader;
+
+    WatchedSourceSet(
+        String name,
+        JavaCompile compileTask,
+        AptPlugin.AptOptions aptOptions,
+        File generatedSourcesDir,
+        ProcessorClassLoaders.ProcessorClassLoader processorClassLoader) {
+      this.name = name;
+      this.compileTask = compileTask;
+      this.aptOptions = aptOptions;
+      this.generatedSourcesDir = generatedSourcesDir;
+      this.processorClassLoader = processorClassLoader;
+    }
+  }
+}
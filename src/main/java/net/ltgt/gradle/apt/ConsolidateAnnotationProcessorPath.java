@@ -0,0 +1,301 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import javax.annotation.Nullable;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Merges the entries of an annotation processor path into a single jar, so that compile tasks
+ * only have to open and index one file.
+ *
+ * <p>Entries are merged in classpath order, the first occurrence of a file winning, except for
+ * {@code META-INF/services} files and the Gradle incremental annotation processors declarations
+ * whose lines are concatenated. Signature files, manifests and module descriptors are dropped, as
+ * well as the versioned entries of jars that aren't multi-release themselves. A warning lists the
+ * files found with different contents in several entries: while a class loader also only loads
+ * the first one, lookups of all the resources with a given name (e.g. to discover plugins) won't
+ * see the others.
+ *
+ * <p>The task is disabled by default; when enabled, the compile task uses the consolidated jar as
+ * its annotation processor path.
+ */
+@CacheableTask
+public class ConsolidateAnnotationProcessorPath extends DefaultTask {
+  private static final String SERVICES_PREFIX = "META-INF/services/";
+  private static final String VERSIONS_PREFIX = "META-INF/versions/";
+  private static final String MODULE_INFO = "module-info.class";
+  // Attributes.Name.MULTI_RELEASE only exists since Java 9
+  private static final Attributes.Name MULTI_RELEASE = new Attributes.Name("Multi-Release");
+  // same as Gradle's reproducible archives: 1980-02-01 00:00:00 in local time
+  private static final long ENTRY_TIME =
+      new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).getTimeInMillis();
+
+  private FileCollection annotationProcessorPath;
+  private File archiveFile;
+
+  public ConsolidateAnnotationProcessorPath() {
+    annotationProcessorPath = getProject().files();
+    archiveFile = new File(getTemporaryDir(), "processorPath.jar");
+    setEnabled(false);
+  }
+
+  @Classpath
+  public FileCollection getAnnotationProcessorPath() {
+    return annotationProcessorPath;
+  }
+
+  public void setAnnotationProcessorPath(FileCollection annotationProcessorPath) {
+    this.annotationProcessorPath = annotationProcessorPath;
+  }
+
+  @OutputFile
+  public File getArchiveFile() {
+    return archiveFile;
+  }
+
+  public void setArchiveFile(File archiveFile) {
+    this.archiveFile = archiveFile;
+  }
+
+  @TaskAction
+  public void consolidate() throws IOException {
+    Map<String, Origin> names = new HashMap<>();
+    Map<String, Set<String>> mergedEntries = new LinkedHashMap<>();
+    Set<String> conflicts = new TreeSet<>();
+    Files.createDirectories(archiveFile.toPath().toAbsolutePath().getParent());
+    try (JarOutputStream out =
+        new JarOutputStream(Files.newOutputStream(archiveFile.toPath()))) {
+      // the manifest has to come first
+      Manifest manifest = new Manifest();
+      manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+      if (isMultiRelease()) {
+        manifest.getMainAttributes().put(MULTI_RELEASE, "true");
+      }
+      putNextEntry(out, JarFile.MANIFEST_NAME);
+      manifest.write(out);
+      out.closeEntry();
+
+      for (File entry : annotationProcessorPath) {
+        if (entry.isDirectory()) {
+          Path root = entry.toPath();
+          List<Path> files;
+          try (Stream<Path> stream = Files.walk(root)) {
+            files = stream.sorted().collect(Collectors.toList());
+          }
+          for (Path file : files) {
+            String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+            if (name.isEmpty()) {
+              continue;
+            }
+            if (Files.isDirectory(file)) {
+              name += "/";
+            }
+            try (InputStream in = Files.isDirectory(file) ? null : Files.newInputStream(file)) {
+              copyEntry(out, entry, name, in, names, mergedEntries, conflicts);
+            }
+          }
+        } else if (entry.isFile()) {
+          try (JarFile jarFile = new JarFile(entry)) {
+            boolean multiRelease = isMultiRelease(jarFile);
+            for (Enumeration<? extends ZipEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+              ZipEntry zipEntry = e.nextElement();
+              if (!multiRelease && zipEntry.getName().startsWith(VERSIONS_PREFIX)) {
+                // would otherwise take precedence in the multi-release consolidated jar
+                continue;
+              }
+              try (InputStream in =
+                  zipEntry.isDirectory() ? null : jarFile.getInputStream(zipEntry)) {
+                copyEntry(out, entry, zipEntry.getName(), in, names, mergedEntries, conflicts);
+              }
+            }
+          }
+        }
+      }
+      for (Map.Entry<String, Set<String>> service : mergedEntries.entrySet()) {
+        putNextEntry(out, service.getKey());
+        for (String line : service.getValue()) {
+          out.write(line.getBytes(StandardCharsets.UTF_8));
+          out.write('\n');
+        }
+        out.closeEntry();
+      }
+    }
+    if (!conflicts.isEmpty()) {
+      getLogger()
+          .warn(
+              "Files with different contents in several annotation processor path entries; only"
+                  + " the first one of each is kept in {}:\n  {}",
+              archiveFile,
+              String.join("\n  ", conflicts));
+    }
+  }
+
+  private boolean isMultiRelease() throws IOException {
+    for (File entry : annotationProcessorPath) {
+      if (entry.isFile()) {
+        try (JarFile jarFile = new JarFile(entry)) {
+          if (isMultiRelease(jarFile)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isMultiRelease(JarFile jarFile) throws IOException {
+    Manifest manifest = jarFile.getManifest();
+    return manifest != null
+        && Boolean.parseBoolean(manifest.getMainAttributes().getValue(MULTI_RELEASE));
+  }
+
+  private static void copyEntry(
+      JarOutputStream out,
+      File entry,
+      String name,
+      @Nullable InputStream in,
+      Map<String, Origin> names,
+      Map<String, Set<String>> mergedEntries,
+      Set<String> conflicts)
+      throws IOException {
+    if (isExcluded(name)) {
+      return;
+    }
+    if (in == null) {
+      // directory
+      if (names.putIfAbsent(name, new Origin(entry, new byte[0])) == null) {
+        putNextEntry(out, name);
+        out.closeEntry();
+      }
+      return;
+    }
+    byte[] content = readAll(in);
+    if (isMergedByLine(name)) {
+      mergedEntries
+          .computeIfAbsent(name, k -> new LinkedHashSet<>())
+          .addAll(AnnotationProcessing.parseServiceProviders(content));
+      return;
+    }
+    Origin origin = names.get(name);
+    if (origin != null) {
+      // first occurrence wins, as in a classpath
+      if (!Arrays.equals(origin.digest, digest(content))) {
+        conflicts.add(name + " (from " + origin.entry.getName() + " and " + entry.getName() + ")");
+      }
+      return;
+    }
+    names.put(name, new Origin(entry, digest(content)));
+    putNextEntry(out, name);
+    out.write(content);
+    out.closeEntry();
+  }
+
+  private static byte[] digest(byte[] content) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(content);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static boolean isMergedByLine(String name) {
+    return (name.startsWith(SERVICES_PREFIX) && name.indexOf('/', SERVICES_PREFIX.length()) < 0)
+        || name.equals(AnnotationProcessing.INCREMENTAL_PROCESSORS);
+  }
+
+  private static boolean isExcluded(String name) {
+    if (name.equals(MODULE_INFO)
+        || (name.startsWith(VERSIONS_PREFIX) && name.endsWith("/" + MODULE_INFO))) {
+      // the consolidated jar isn't any of the modules
+      return true;
+    }
+    String upperCaseName = name.toUpperCase(Locale.ROOT);
+    return upperCaseName.equals(JarFile.MANIFEST_NAME)
+        || upperCaseName.equals("META-INF/INDEX.LIST")
+        || (upperCaseName.startsWith("META-INF/")
+            && upperCaseName.indexOf('/', "META-INF/".length()) < 0
+            && (upperCaseName.endsWith(".SF")
+                || upperCaseName.endsWith(".DSA")
+                || upperCaseName.endsWith(".RSA")
+                || upperCaseName.endsWith(".EC")));
+  }
+
+  private static void putNextEntry(JarOutputStream out, String name) throws IOException {
+    ZipEntry zipEntry = new ZipEntry(name);
+    zipEntry.setTime(ENTRY_TIME);
+    out.putNextEntry(zipEntry);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    copy(in, bytes);
+    return bytes.toByteArray();
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+    }
+  }
+
+  /** The processor path entry a file was first found in, and the digest of its content. */
+  private static class Origin {
+    final File entry;
+    final byte[] digest;
+
+    Origin(File entry, byte[] digest) {
+      this.entry = entry;
+      this.digest = digest;
+    }
+  }
+}
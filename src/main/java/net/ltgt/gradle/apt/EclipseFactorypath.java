@@ -16,9 +16,19 @@
 package net.ltgt.gradle.apt;
 
 import groovy.lang.Closure;
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import org.gradle.api.Action;
 import org.gradle.api.artifacts.Configuration;
 import org.gradle.plugins.ide.api.XmlFileContentMerger;
@@ -33,6 +43,9 @@ public class EclipseFactorypath {
 
   private Collection<Configuration> plusConfigurations = new ArrayList<>();
   private Collection<Configuration> minusConfigurations = new ArrayList<>();
+  private Collection<Configuration> disabledConfigurations = new ArrayList<>();
+  private boolean processorsOnly;
+  private final Map<String, EntryRule> entryRules = new LinkedHashMap<>();
 
   public Collection<Configuration> getPlusConfigurations() {
     return plusConfigurations;
@@ -50,6 +63,86 @@ public class EclipseFactorypath {
     this.minusConfigurations = Objects.requireNonNull(minusConfigurations);
   }
 
+  /**
+   * Returns the configurations whose files are added to the factorypath as disabled entries,
+   * unless they're also in another of the {@link #getPlusConfigurations() plus configurations}.
+   *
+   * <p>Eclipse only has one factorypath per project, so processors of all source sets run on all
+   * sources; this can be used to e.g. not run test-only processors in Eclipse (neither on main nor
+   * on test sources), while keeping them listed so they can be enabled from the Eclipse UI.
+   *
+   * <p>Only entries that aren't already in the factorypath are disabled, so entries enabled from
+   * the Eclipse UI stay enabled when the factorypath is regenerated.
+   */
+  public Collection<Configuration> getDisabledConfigurations() {
+    return disabledConfigurations;
+  }
+
+  public void setDisabledConfigurations(Collection<Configuration> disabledConfigurations) {
+    this.disabledConfigurations = Objects.requireNonNull(disabledConfigurations);
+  }
+
+  /**
+   * Whether to only add to the factorypath the files that declare annotation processors (as
+   * services), along with their transitive dependencies, rather than all the files of the {@link
+   * #getPlusConfigurations() plus configurations}.
+   */
+  public boolean isProcessorsOnly() {
+    return processorsOnly;
+  }
+
+  public void setProcessorsOnly(boolean processorsOnly) {
+    this.processorsOnly = processorsOnly;
+  }
+
+  /**
+   * Returns the rule for the factorypath entries matching the given pattern, creating it if needed.
+   *
+   * <p>The pattern is either a glob matched against the entries' file names (e.g. {@code
+   * dagger-compiler-*.jar}), or the fully qualified name of an annotation processor declared (as a
+   * service) by the entries.
+   *
+   * <p>Settings from the rules take precedence over those of existing entries, which are otherwise
+   * kept when the factorypath is regenerated.
+   */
+  public EntryRule entry(String pattern) {
+    return entryRules.computeIfAbsent(pattern, EntryRule::new);
+  }
+
+  public EntryRule entry(String pattern, Action<? super EntryRule> configure) {
+    EntryRule rule = entry(pattern);
+    configure.execute(rule);
+    return rule;
+  }
+
+  public EntryRule entry(String pattern, Closure<?> closure) {
+    return ConfigureUtil.configure(closure, entry(pattern));
+  }
+
+  public Collection<EntryRule> getEntryRules() {
+    return Collections.unmodifiableCollection(entryRules.values());
+  }
+
+  /**
+   * Returns whether an entry for the given file would be enabled by the {@link #getEntryRules()
+   * entry rules}, assuming it was initially enabled.
+   */
+  boolean isEnabledByRules(File file, Supplier<Set<String>> processorNames) {
+    boolean enabled = true;
+    for (EntryRule rule : entryRules.values()) {
+      if (rule.matches(file, processorNames)) {
+        if (rule.isExcluded()) {
+          return false;
+        }
+        Boolean ruleEnabled = rule.getEnabled();
+        if (ruleEnabled != null) {
+          enabled = ruleEnabled;
+        }
+      }
+    }
+    return enabled;
+  }
+
   public XmlFileContentMerger getFile() {
     return this.file;
   }
@@ -61,4 +154,64 @@ public class EclipseFactorypath {
   public void file(Action<? super XmlFileContentMerger> action) {
     action.execute(this.file);
   }
+
+  /** Settings for the factorypath entries matching a pattern. */
+  public static class EntryRule {
+    private final String pattern;
+    private final PathMatcher matcher;
+    @Nullable private Boolean enabled;
+    @Nullable private Boolean runInBatchMode;
+    private boolean excluded;
+
+    EntryRule(String pattern) {
+      this.pattern = pattern;
+      this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+    }
+
+    public String getPattern() {
+      return pattern;
+    }
+
+    /** Whether the matching entries are enabled, or {@code null} to keep their current setting. */
+    @Nullable
+    public Boolean getEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(@Nullable Boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    /**
+     * Whether the processors of the matching entries run in batch mode, or {@code null} to keep
+     * their current setting.
+     *
+     * <p>Eclipse only runs batch-mode processors during full builds: they're skipped both while
+     * typing in the editor (reconcile) and during incremental builds.
+     */
+    @Nullable
+    public Boolean getRunInBatchMode() {
+      return runInBatchMode;
+    }
+
+    public void setRunInBatchMode(@Nullable Boolean runInBatchMode) {
+      this.runInBatchMode = runInBatchMode;
+    }
+
+    /**
+     * Whether the matching entries are left out of the factorypath, e.g. for processors that are
+     * only needed in Gradle builds.
+     */
+    public boolean isExcluded() {
+      return excluded;
+    }
+
+    public void setExcluded(boolean excluded) {
+      this.excluded = excluded;
+    }
+
+    boolean matches(File file, Supplier<Set<String>> processorNames) {
+      return matcher.matches(Paths.get(file.getName())) || processorNames.get().contains(pattern);
+    }
+  }
 }
@@ -17,6 +17,8 @@ package net.ltgt.gradle.apt;
 
 import groovy.lang.Closure;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -45,6 +47,8 @@ public class EclipseJdtApt {
     genSrcDir.set(project.file(".apt_generated"));
     this.genTestSrcDir = project.getObjects().property(File.class);
     genTestSrcDir.set(project.file(".apt_generated_tests"));
+    this.useGradleGeneratedSourcesDirs = project.getObjects().property(Boolean.class);
+    useGradleGeneratedSourcesDirs.set(false);
     this.processorOptionsSupplier = LinkedHashMap::new;
   }
 
@@ -79,6 +83,9 @@ public class EclipseJdtApt {
   private final Property<File> genSrcDir;
 
   public File getGenSrcDir() {
+    if (isUseGradleGeneratedSourcesDirs() && gradleGeneratedSourcesDir != null) {
+      return gradleGeneratedSourcesDir.get();
+    }
     return project.file(genSrcDir);
   }
 
@@ -94,6 +101,9 @@ public class EclipseJdtApt {
   private final Property<File> genTestSrcDir;
 
   public File getGenTestSrcDir() {
+    if (isUseGradleGeneratedSourcesDirs() && gradleGeneratedTestSourcesDir != null) {
+      return gradleGeneratedTestSourcesDir.get();
+    }
     return project.file(genTestSrcDir);
   }
 
@@ -106,6 +116,55 @@ public class EclipseJdtApt {
     this.genTestSrcDir.set(project.provider(() -> project.file(genTestSrcDir)));
   }
 
+  private Collection<String> heavyProcessors = new ArrayList<>();
+
+  /**
+   * Returns the names of the annotation processors that are too expensive to run while editing.
+   *
+   * <p>Unless {@link #setReconcileEnabled(boolean) explicitly set}, processing in the editor
+   * (reconcile) is only enabled when none of those processors is declared by an enabled
+   * factorypath entry.
+   */
+  public Collection<String> getHeavyProcessors() {
+    return heavyProcessors;
+  }
+
+  public void setHeavyProcessors(Collection<String> heavyProcessors) {
+    this.heavyProcessors = Objects.requireNonNull(heavyProcessors);
+  }
+
+  private final Property<Boolean> useGradleGeneratedSourcesDirs;
+  @Nullable private Provider<File> gradleGeneratedSourcesDir;
+  @Nullable private Provider<File> gradleGeneratedTestSourcesDir;
+
+  /**
+   * <b>Unsafe:</b> whether Eclipse generates sources into the same directories as the main and test
+   * {@code JavaCompile} tasks, instead of {@link #getGenSrcDir()} and {@link #getGenTestSrcDir()},
+   * such that only one copy of the generated sources exists.
+   *
+   * <p>Nothing coordinates the two tools: Gradle doesn't know about the files generated by Eclipse,
+   * so a full recompilation or a {@code clean} deletes them, even while Eclipse is building, until
+   * Eclipse's next build regenerates them. A warning is logged when generating the Eclipse
+   * settings with this option.
+   */
+  public boolean isUseGradleGeneratedSourcesDirs() {
+    return useGradleGeneratedSourcesDirs.get();
+  }
+
+  public void setUseGradleGeneratedSourcesDirs(boolean useGradleGeneratedSourcesDirs) {
+    this.useGradleGeneratedSourcesDirs.set(useGradleGeneratedSourcesDirs);
+  }
+
+  public void setUseGradleGeneratedSourcesDirs(Provider<Boolean> useGradleGeneratedSourcesDirs) {
+    this.useGradleGeneratedSourcesDirs.set(useGradleGeneratedSourcesDirs);
+  }
+
+  void setGradleGeneratedSourcesDirs(
+      Provider<File> gradleGeneratedSourcesDir, Provider<File> gradleGeneratedTestSourcesDir) {
+    this.gradleGeneratedSourcesDir = gradleGeneratedSourcesDir;
+    this.gradleGeneratedTestSourcesDir = gradleGeneratedTestSourcesDir;
+  }
+
   // XXX: this is actually either a Property<Map> or a MapProperty depending on Gradle version
   private @Nullable Supplier<Map<String, ?>> processorOptionsSupplier;
   private @Nullable Map<String, ?> processorOptions;
@@ -15,24 +15,47 @@
  */
 package net.ltgt.gradle.apt;
 
-import groovy.util.Node;
-import groovy.util.NodeList;
 import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Objects;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import org.gradle.api.GradleException;
 import org.gradle.internal.xml.XmlTransformer;
 import org.gradle.plugins.ide.internal.generator.XmlPersistableConfigurationObject;
 
+/**
+ * The content of an Eclipse {@code .factorypath} file.
+ *
+ * <p>The file is read and written in a streaming fashion rather than through a {@link
+ * groovy.util.Node} tree, as it can have hundreds of entries; {@code withXml} hooks are still
+ * applied to the written content, which is only parsed into a tree if they need it.
+ */
 public class Factorypath extends XmlPersistableConfigurationObject {
-  private List<File> entries = new ArrayList<>();
+  private static final String ROOT_ELEMENT = "factorypath";
+  private static final String ENTRY_ELEMENT = "factorypathentry";
+  private static final String FILE_ENTRY_KIND = "EXTJAR";
+
+  private final XmlTransformer xmlTransformer;
+  private List<Entry> factorypathEntries = new ArrayList<>();
+  /** Entries other than files (e.g. Eclipse plugins), kept as-is. */
+  private final List<Map<String, String>> otherEntries = new ArrayList<>();
 
   Factorypath(XmlTransformer xmlTransformer) {
     super(xmlTransformer);
+    this.xmlTransformer = xmlTransformer;
   }
 
   @Override
@@ -40,56 +63,189 @@ public class Factorypath extends XmlPersistableConfigurationObject {
     return "defaultFactorypath.xml";
   }
 
+  /**
+   * Loads the entries of an existing file with their settings; disabled entries ({@code
+   * enabled="false"}) are kept, still disabled, rather than being dropped or enabled back.
+   */
   @Override
-  protected void load(Node xml) {
-    for (Object e : (NodeList) xml.get("factorypathentry")) {
-      Node entryNode = (Node) e;
-      if (isFileEntry(entryNode)) {
-        this.entries.add(new File((String) entryNode.attribute("id")));
+  public void load(InputStream inputStream) throws Exception {
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() != XMLStreamConstants.START_ELEMENT
+            || !ENTRY_ELEMENT.equals(reader.getLocalName())) {
+          continue;
+        }
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+          attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        String id = attributes.get("id");
+        if (FILE_ENTRY_KIND.equals(attributes.get("kind")) && id != null) {
+          Entry entry = new Entry(new File(id));
+          entry.setEnabled(Boolean.parseBoolean(attributes.get("enabled")));
+          entry.setRunInBatchMode(Boolean.parseBoolean(attributes.get("runInBatchMode")));
+          this.factorypathEntries.add(entry);
+        } else {
+          this.otherEntries.add(attributes);
+        }
       }
+    } finally {
+      reader.close();
     }
   }
 
-  void mergeEntries(Collection<File> newEntries) {
-    Set<File> updatedEntries = new LinkedHashSet<>();
-    for (File f : entries) {
-      updatedEntries.add(f.getAbsoluteFile());
+  @Override
+  public void store(OutputStream outputStream) {
+    StringWriter content = new StringWriter();
+    try {
+      XMLStreamWriter writer = XMLOutputFactory.newFactory().createXMLStreamWriter(content);
+      // the XML declaration is added by the XmlTransformer
+      writer.writeStartElement(ROOT_ELEMENT);
+      for (Map<String, String> attributes : otherEntries) {
+        writeEntry(writer, attributes);
+      }
+      for (Entry entry : factorypathEntries) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("kind", FILE_ENTRY_KIND);
+        attributes.put("id", entry.getFile().getAbsolutePath());
+        attributes.put("enabled", Boolean.toString(entry.isEnabled()));
+        attributes.put("runInBatchMode", Boolean.toString(entry.isRunInBatchMode()));
+        writeEntry(writer, attributes);
+      }
+      writer.writeCharacters("\n");
+      writer.writeEndElement();
+      writer.writeCharacters("\n");
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new GradleException("Could not write factorypath", e);
     }
-    for (File f : newEntries) {
-      updatedEntries.add(f.getAbsoluteFile());
+    xmlTransformer.transform(content.toString(), outputStream);
+  }
+
+  private static void writeEntry(XMLStreamWriter writer, Map<String, String> attributes)
+      throws XMLStreamException {
+    writer.writeCharacters("\n\t");
+    writer.writeEmptyElement(ENTRY_ELEMENT);
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      writer.writeAttribute(attribute.getKey(), attribute.getValue());
     }
-    entries = new ArrayList<>(updatedEntries);
   }
 
-  @Override
-  protected void store(Node xml) {
-    for (Object e : (NodeList) xml.get("factorypathentry")) {
-      Node entryNode = (Node) e;
-      if (isFileEntry(entryNode)) {
-        xml.remove(entryNode);
+  /**
+   * Merges the given files into the existing entries; existing entries keep their settings, and
+   * new entries are enabled and not run in batch mode.
+   */
+  void mergeEntries(Collection<File> newEntries) {
+    Map<File, Entry> updatedEntries = new LinkedHashMap<>();
+    for (Entry entry : factorypathEntries) {
+      File file = entry.getFile().getAbsoluteFile();
+      if (!updatedEntries.containsKey(file)) {
+        updatedEntries.put(file, entry.withFile(file));
       }
     }
-
-    for (File entry : entries) {
-      Map<String, Object> attributes = new LinkedHashMap<>();
-      attributes.put("kind", "EXTJAR");
-      attributes.put("id", entry.getAbsolutePath());
-      attributes.put("enabled", true);
-      attributes.put("runInBatchMode", false);
-      xml.appendNode("factorypathentry", attributes);
+    for (File f : newEntries) {
+      File file = f.getAbsoluteFile();
+      if (!updatedEntries.containsKey(file)) {
+        updatedEntries.put(file, new Entry(file));
+      }
     }
+    factorypathEntries = new ArrayList<>(updatedEntries.values());
   }
 
+  /**
+   * Returns the files of the entries, as a live view: files added to that list become entries with
+   * default settings.
+   */
   public List<File> getEntries() {
-    return entries;
+    return new AbstractList<File>() {
+      @Override
+      public File get(int index) {
+        return factorypathEntries.get(index).getFile();
+      }
+
+      @Override
+      public File set(int index, File element) {
+        Entry previous = factorypathEntries.set(index, new Entry(element));
+        return previous.getFile();
+      }
+
+      @Override
+      public void add(int index, File element) {
+        factorypathEntries.add(index, new Entry(element));
+      }
+
+      @Override
+      public File remove(int index) {
+        return factorypathEntries.remove(index).getFile();
+      }
+
+      @Override
+      public int size() {
+        return factorypathEntries.size();
+      }
+    };
   }
 
   public void setEntries(List<File> entries) {
-    this.entries = entries;
+    List<Entry> factorypathEntries = new ArrayList<>(entries.size());
+    for (File file : entries) {
+      factorypathEntries.add(new Entry(file));
+    }
+    this.factorypathEntries = factorypathEntries;
+  }
+
+  public List<Entry> getFactorypathEntries() {
+    return factorypathEntries;
+  }
+
+  public void setFactorypathEntries(List<Entry> factorypathEntries) {
+    this.factorypathEntries = Objects.requireNonNull(factorypathEntries);
   }
 
-  private static boolean isFileEntry(Node entryNode) {
-    return "EXTJAR".equals(entryNode.attribute("kind"))
-        && Boolean.valueOf(String.valueOf(entryNode.attribute("enabled")));
+  /** A factorypath entry for a JAR file. */
+  public static class Entry {
+    private final File file;
+    private boolean enabled = true;
+    private boolean runInBatchMode;
+
+    public Entry(File file) {
+      this.file = Objects.requireNonNull(file);
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public boolean isRunInBatchMode() {
+      return runInBatchMode;
+    }
+
+    public void setRunInBatchMode(boolean runInBatchMode) {
+      this.runInBatchMode = runInBatchMode;
+    }
+
+    Entry withFile(File file) {
+      Entry entry = new Entry(file);
+      entry.setEnabled(enabled);
+      entry.setRunInBatchMode(runInBatchMode);
+      return entry;
+    }
+
+    @Override
+    public String toString() {
+      return file.toString();
+    }
   }
 }
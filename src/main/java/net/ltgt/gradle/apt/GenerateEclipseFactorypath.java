@@ -16,9 +16,22 @@
 package net.ltgt.gradle.apt;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ResolvedArtifact;
+import org.gradle.api.artifacts.ResolvedDependency;
 import org.gradle.api.tasks.Internal;
 import org.gradle.plugins.ide.api.XmlGeneratorTask;
 
@@ -26,28 +39,139 @@ public class GenerateEclipseFactorypath extends XmlGeneratorTask<Factorypath> {
   @SuppressWarnings("NullAway.Init") // will be initialized by setFactorypath right after creation
   private EclipseFactorypath factorypath;
 
-  @SuppressWarnings(
-      "NullAway") // factorypath will be initialized by setFactorypath right after creation
-  public GenerateEclipseFactorypath() {
-    this.getXmlTransformer().setIndentation("\t");
-  }
-
   @SuppressWarnings("unchecked")
   @Override
   protected void configure(Factorypath factorypath) {
     EclipseFactorypath factorypathModel = getFactorypath();
     factorypathModel.getFile().getBeforeMerged().execute(factorypath);
+    SharedFactorypathResolution sharedResolution =
+        SharedFactorypathResolution.forProject(getProject());
     Set<File> entries = new LinkedHashSet<>();
+    Set<File> enabledEntries = new HashSet<>();
     for (Configuration configuration : factorypathModel.getPlusConfigurations()) {
-      entries.addAll(configuration.getFiles());
+      Set<File> files =
+          factorypathModel.isProcessorsOnly()
+              ? resolve(
+                  sharedResolution,
+                  configuration,
+                  "processors",
+                  GenerateEclipseFactorypath::getProcessorFiles)
+              : resolve(sharedResolution, configuration, "files", Configuration::getFiles);
+      entries.addAll(files);
+      if (!factorypathModel.getDisabledConfigurations().contains(configuration)) {
+        enabledEntries.addAll(files);
+      }
     }
     for (Configuration configuration : factorypathModel.getMinusConfigurations()) {
-      entries.removeAll(configuration.getFiles());
+      entries.removeAll(
+          resolve(sharedResolution, configuration, "files", Configuration::getFiles));
+    }
+    // Only disable new entries, so entries enabled from the Eclipse UI stay enabled.
+    Set<File> existingEntries = new HashSet<>();
+    for (Factorypath.Entry entry : factorypath.getFactorypathEntries()) {
+      existingEntries.add(entry.getFile().getAbsoluteFile());
     }
     factorypath.mergeEntries(entries);
+    for (Factorypath.Entry entry : factorypath.getFactorypathEntries()) {
+      if (entries.contains(entry.getFile())
+          && !enabledEntries.contains(entry.getFile())
+          && !existingEntries.contains(entry.getFile())) {
+        entry.setEnabled(false);
+      }
+    }
+    applyEntryRules(factorypathModel.getEntryRules(), factorypath);
     factorypathModel.getFile().getWhenMerged().execute(factorypath);
   }
 
+  private Set<File> resolve(
+      @Nullable SharedFactorypathResolution sharedResolution,
+      Configuration configuration,
+      String variant,
+      Function<Configuration, Set<File>> resolver) {
+    return sharedResolution == null
+        ? resolver.apply(configuration)
+        : sharedResolution.getFiles(getProject(), configuration, variant, resolver);
+  }
+
+  private static void applyEntryRules(
+      Collection<EclipseFactorypath.EntryRule> rules, Factorypath factorypath) {
+    if (rules.isEmpty()) {
+      return;
+    }
+    Map<File, Set<String>> processorNamesCache = new HashMap<>();
+    for (Iterator<Factorypath.Entry> it = factorypath.getFactorypathEntries().iterator();
+        it.hasNext(); ) {
+      Factorypath.Entry entry = it.next();
+      // only look for processors if a rule's pattern doesn't match the file name
+      Supplier<Set<String>> processorNames =
+          () ->
+              processorNamesCache.computeIfAbsent(
+                  entry.getFile(),
+                  file -> AnnotationProcessing.discoverProcessorNames(Collections.singleton(file)));
+      for (EclipseFactorypath.EntryRule rule : rules) {
+        if (!rule.matches(entry.getFile(), processorNames)) {
+          continue;
+        }
+        if (rule.isExcluded()) {
+          it.remove();
+          break;
+        }
+        Boolean enabled = rule.getEnabled();
+        if (enabled != null) {
+          entry.setEnabled(enabled);
+        }
+        Boolean runInBatchMode = rule.getRunInBatchMode();
+        if (runInBatchMode != null) {
+          entry.setRunInBatchMode(runInBatchMode);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the files of the configuration that declare annotation processors, along with the
+   * files of their transitive dependencies, in the configuration's files order.
+   */
+  private static Set<File> getProcessorFiles(Configuration configuration) {
+    Set<File> allFiles = configuration.getFiles();
+    Set<File> processorFiles = new HashSet<>();
+    Set<File> resolvedFiles = new HashSet<>();
+    Set<ResolvedDependency> visited = new HashSet<>();
+    Deque<ResolvedDependency> queue =
+        new ArrayDeque<>(
+            configuration.getResolvedConfiguration().getFirstLevelModuleDependencies());
+    while (!queue.isEmpty()) {
+      ResolvedDependency dependency = queue.removeFirst();
+      if (!visited.add(dependency)) {
+        continue;
+      }
+      boolean hasProcessors = false;
+      for (ResolvedArtifact artifact : dependency.getModuleArtifacts()) {
+        resolvedFiles.add(artifact.getFile());
+        hasProcessors |= declaresProcessors(artifact.getFile());
+      }
+      if (hasProcessors) {
+        for (ResolvedArtifact artifact : dependency.getAllModuleArtifacts()) {
+          processorFiles.add(artifact.getFile());
+        }
+      }
+      queue.addAll(dependency.getChildren());
+    }
+    Set<File> result = new LinkedHashSet<>();
+    for (File file : allFiles) {
+      // file dependencies aren't part of the dependency graph, keep them if they contain processors
+      if (processorFiles.contains(file)
+          || (!resolvedFiles.contains(file) && declaresProcessors(file))) {
+        result.add(file);
+      }
+    }
+    return result;
+  }
+
+  private static boolean declaresProcessors(File file) {
+    return !AnnotationProcessing.discoverProcessorNames(Collections.singleton(file)).isEmpty();
+  }
+
   @Internal
   public EclipseFactorypath getFactorypath() {
     return factorypath;
@@ -59,6 +183,7 @@ public class GenerateEclipseFactorypath extends XmlGeneratorTask<Factorypath> {
 
   @Override
   protected Factorypath create() {
-    return new Factorypath(getXmlTransformer());
+    // Use the transformer from the model, such that its withXml hooks are applied
+    return new Factorypath(getFactorypath().getFile().getXmlTransformer());
   }
 }
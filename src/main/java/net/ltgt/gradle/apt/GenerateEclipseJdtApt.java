@@ -28,6 +28,13 @@ public class GenerateEclipseJdtApt extends PropertiesGeneratorTask<JdtApt> {
   protected void configure(JdtApt jdtApt) {
     EclipseJdtApt jdtAptModel = getJdtApt();
     jdtAptModel.getFile().getBeforeMerged().execute(jdtApt);
+    if (jdtAptModel.isUseGradleGeneratedSourcesDirs()) {
+      getLogger()
+          .warn(
+              "Eclipse is configured to generate sources into the Gradle generated sources"
+                  + " directories; files generated by Eclipse will be deleted by Gradle"
+                  + " whenever it recompiles all sources or cleans.");
+    }
     jdtApt.setAptEnabled(jdtAptModel.isAptEnabled());
     jdtApt.setGenSrcDir(getProject().relativePath(jdtAptModel.getGenSrcDir()));
     jdtApt.setGenTestSrcDir(getProject().relativePath(jdtAptModel.getGenTestSrcDir()));
@@ -37,7 +44,7 @@ public class GenerateEclipseJdtApt extends PropertiesGeneratorTask<JdtApt> {
       for (Map.Entry<String, ?> entry : jdtAptModel.getProcessorOptions().entrySet()) {
         jdtApt
             .getProcessorOptions()
-            .put(entry.getKey(), entry.getValue() == null ? null : entry.getValue().toString());
+            .put(entry.getKey(), AptPlugin.AptOptions.asArgumentValue(entry.getValue()));
       }
     }
     jdtAptModel.getFile().getWhenMerged().execute(jdtApt);
@@ -45,7 +52,8 @@ public class GenerateEclipseJdtApt extends PropertiesGeneratorTask<JdtApt> {
 
   @Override
   protected JdtApt create() {
-    return new JdtApt(getTransformer());
+    // Use the transformer from the model, such that its withProperties hooks are applied
+    return new JdtApt(getJdtApt().getFile().getTransformer());
   }
 
   @Internal
@@ -51,7 +51,7 @@ public class JdtApt extends PropertiesPersistableConfigurationObject {
     // Ignore aptEnabled when loading, see comment about storing it
     genSrcDir = properties.getProperty(GEN_SRC_DIR_KEY);
     genTestSrcDir = properties.getProperty(GEN_TEST_SRC_DIR_KEY);
-    reconcileEnabled = Boolean.parseBoolean(RECONCILE_ENABLED_KEY);
+    reconcileEnabled = Boolean.parseBoolean(properties.getProperty(RECONCILE_ENABLED_KEY));
     for (String name : properties.stringPropertyNames()) {
       if (name.startsWith(PROCESSOR_OPTIONS_KEY_PREFIX)) {
         final String value = properties.getProperty(name);
@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.io.File;
+import java.util.function.Function;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.SkipWhenEmpty;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Runs annotation processors over a subset of the sources of a Groovy source set (see {@link
+ * AptPlugin.AptOptions#getProcessingIncludes()}), ahead of the {@code GroovyCompile} task, such
+ * that the Java stubs generated for Groovy sources during joint compilation aren't processed.
+ *
+ * <p>Other sources are available through the sourcepath, but Groovy sources can't be resolved, so
+ * errors don't fail the task; they're reported as warnings (along with warnings, including those
+ * from annotation processors), and actual compilation errors will be reported by the compile task.
+ */
+public class ProcessGroovyAnnotations extends AnnotationProcessingTask {
+  private FileCollection source;
+  private FileCollection sourcepath;
+  private FileCollection classpath;
+  private FileCollection annotationProcessorPath;
+  private File generatedSourcesDirectory;
+  private File generatedResourcesDirectory;
+
+  public ProcessGroovyAnnotations() {
+    source = getProject().files();
+    sourcepath = getProject().files();
+    classpath = getProject().files();
+    annotationProcessorPath = getProject().files();
+    generatedSourcesDirectory = new File(getTemporaryDir(), "sources");
+    generatedResourcesDirectory = new File(getTemporaryDir(), "resources");
+  }
+
+  @InputFiles
+  @SkipWhenEmpty
+  @PathSensitive(PathSensitivity.RELATIVE)
+  public FileCollection getSource() {
+    return source;
+  }
+
+  public void setSource(FileCollection source) {
+    this.source = source;
+  }
+
+  /** The source directories, to resolve types from sources that aren't processed. */
+  @Internal
+  public FileCollection getSourcepath() {
+    return sourcepath;
+  }
+
+  public void setSourcepath(FileCollection sourcepath) {
+    this.sourcepath = sourcepath;
+  }
+
+  @Classpath
+  public FileCollection getClasspath() {
+    return classpath;
+  }
+
+  public void setClasspath(FileCollection classpath) {
+    this.classpath = classpath;
+  }
+
+  @Classpath
+  public FileCollection getAnnotationProcessorPath() {
+    return annotationProcessorPath;
+  }
+
+  public void setAnnotationProcessorPath(FileCollection annotationProcessorPath) {
+    this.annotationProcessorPath = annotationProcessorPath;
+  }
+
+  @OutputDirectory
+  public File getGeneratedSourcesDirectory() {
+    return generatedSourcesDirectory;
+  }
+
+  public void setGeneratedSourcesDirectory(File generatedSourcesDirectory) {
+    this.generatedSourcesDirectory = generatedSourcesDirectory;
+  }
+
+  @OutputDirectory
+  public File getGeneratedResourcesDirectory() {
+    return generatedResourcesDirectory;
+  }
+
+  public void setGeneratedResourcesDirectory(File generatedResourcesDirectory) {
+    this.generatedResourcesDirectory = generatedResourcesDirectory;
+  }
+
+  @TaskAction
+  public void process() {
+    ProcessorClassLoaders.reportLeaks(getProject(), getLogger());
+    getProject().delete(generatedSourcesDirectory, generatedResourcesDirectory);
+    AnnotationProcessing processing =
+        new AnnotationProcessing(
+            getCompileOptions(), getAptOptions(), classpath, source.getFiles());
+    processing.setSourcepath(sourcepath);
+    // Groovy sources can't be resolved; the compile task reports actual compilation errors
+    processing.setDiagnosticListener(
+        diagnostic -> {
+          switch (diagnostic.getKind()) {
+            case ERROR:
+            case WARNING:
+            case MANDATORY_WARNING:
+              getLogger().warn("{}", diagnostic);
+              break;
+            default:
+              getLogger().info("{}", diagnostic);
+          }
+        });
+    ProcessorClassLoaders.ProcessorClassLoader processorClassLoader =
+        ProcessorClassLoaders.create(AnnotationProcessing.toUrls(annotationProcessorPath));
+    try {
+      processing.run(
+          processorClassLoader,
+          Function.identity(),
+          generatedSourcesDirectory,
+          generatedResourcesDirectory);
+    } finally {
+      ProcessorClassLoaders.release(getProject(), getPath(), processorClassLoader);
+    }
+  }
+}
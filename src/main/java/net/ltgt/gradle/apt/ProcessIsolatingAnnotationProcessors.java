@@ -0,0 +1,292 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.SkipWhenEmpty;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.compile.CompileOptions;
+
+/**
+ * <b>Experimental:</b> runs isolating annotation processors (as declared in their Gradle
+ * incremental annotation processing metadata) over partitions of the sources in parallel, ahead of
+ * the compile task, which then only runs the other processors.
+ *
+ * <p>Each partition is processed by its own javac instance, with the rest of the sources available
+ * through the sourcepath; errors are ignored, as they'll be reported by the compile task. The
+ * generated files of all partitions are then merged, failing if two partitions generated the same
+ * file.
+ *
+ * <p>Isolating processors would never see the sources generated by other processors if those ran
+ * in the compile task, so the task only takes over when all the processors in use are isolating;
+ * otherwise all processors are left to the compile task. Types generated in other partitions
+ * still cannot be seen though.
+ *
+ * <p>The task only runs when {@link AptPlugin.AptOptions#isParallelIsolatingProcessing()} is set
+ * on the compile task.
+ */
+public class ProcessIsolatingAnnotationProcessors extends AnnotationProcessingTask {
+  private FileCollection source;
+  private FileCollection sourcepath;
+  private FileCollection classpath;
+  private FileCollection annotationProcessorPath;
+  private File generatedSourcesDirectory;
+  private File generatedResourcesDirectory;
+  private int partitions = Runtime.getRuntime().availableProcessors();
+
+  public ProcessIsolatingAnnotationProcessors() {
+    source = getProject().files();
+    sourcepath = getProject().files();
+    classpath = getProject().files();
+    annotationProcessorPath = getProject().files();
+    generatedSourcesDirectory = new File(getTemporaryDir(), "sources");
+    generatedResourcesDirectory = new File(getTemporaryDir(), "resources");
+  }
+
+  @InputFiles
+  @SkipWhenEmpty
+  @PathSensitive(PathSensitivity.RELATIVE)
+  public FileCollection getSource() {
+    return source;
+  }
+
+  public void setSource(FileCollection source) {
+    this.source = source;
+  }
+
+  /** The source directories, to resolve types from other partitions. */
+  @Internal
+  public FileCollection getSourcepath() {
+    return sourcepath;
+  }
+
+  public void setSourcepath(FileCollection sourcepath) {
+    this.sourcepath = sourcepath;
+  }
+
+  @Classpath
+  public FileCollection getClasspath() {
+    return classpath;
+  }
+
+  public void setClasspath(FileCollection classpath) {
+    this.classpath = classpath;
+  }
+
+  @Classpath
+  public FileCollection getAnnotationProcessorPath() {
+    return annotationProcessorPath;
+  }
+
+  public void setAnnotationProcessorPath(FileCollection annotationProcessorPath) {
+    this.annotationProcessorPath = annotationProcessorPath;
+  }
+
+  @OutputDirectory
+  public File getGeneratedSourcesDirectory() {
+    return generatedSourcesDirectory;
+  }
+
+  public void setGeneratedSourcesDirectory(File generatedSourcesDirectory) {
+    this.generatedSourcesDirectory = generatedSourcesDirectory;
+  }
+
+  @OutputDirectory
+  public File getGeneratedResourcesDirectory() {
+    return generatedResourcesDirectory;
+  }
+
+  public void setGeneratedResourcesDirectory(File generatedResourcesDirectory) {
+    this.generatedResourcesDirectory = generatedResourcesDirectory;
+  }
+
+  /** The number of partitions, processed in parallel; defaults to the number of processors. */
+  @Internal
+  public int getPartitions() {
+    return partitions;
+  }
+
+  public void setPartitions(int partitions) {
+    this.partitions = partitions;
+  }
+
+  /**
+   * The processors that this task runs in place of the compile task: all the processors in use if
+   * they're all isolating, none otherwise.
+   */
+  @Input
+  public List<String> getIsolatingProcessors() {
+    AptPlugin.AptOptions aptOptions = getAptOptions();
+    if (!aptOptions.isAnnotationProcessing()) {
+      return Collections.emptyList();
+    }
+    Collection<String> processorsInUse = aptOptions.getProcessorNamesInUse();
+    if (processorsInUse == null
+        || !AnnotationProcessing.discoverIsolatingProcessorNames(annotationProcessorPath)
+            .containsAll(processorsInUse)) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<>(processorsInUse);
+  }
+
+  @TaskAction
+  public void process() throws IOException, InterruptedException {
+    ProcessorClassLoaders.reportLeaks(getProject(), getLogger());
+    getProject().delete(generatedSourcesDirectory, generatedResourcesDirectory, getTemporaryDir());
+    generatedSourcesDirectory.mkdirs();
+    generatedResourcesDirectory.mkdirs();
+
+    List<String> isolatingProcessors = getIsolatingProcessors();
+    if (isolatingProcessors.isEmpty()) {
+      getLogger()
+          .info(
+              "No annotation processor in use, or not all of them are isolating;"
+                  + " they will all run in the compile task.");
+      return;
+    }
+
+    List<File> files = new ArrayList<>(source.getFiles());
+    Collections.sort(files);
+    int partitionCount = Math.max(1, Math.min(partitions, files.size()));
+    List<List<File>> partitionFiles = new ArrayList<>();
+    int partitionSize = (files.size() + partitionCount - 1) / partitionCount;
+    for (int i = 0; i < files.size(); i += partitionSize) {
+      partitionFiles.add(files.subList(i, Math.min(i + partitionSize, files.size())));
+    }
+
+    // The project and the task options must not be accessed from the executor threads
+    CompileOptions compileOptions = getCompileOptions();
+    AptPlugin.AptOptions aptOptions = getAptOptions();
+    Map<String, String> processorArgs = aptOptions.getResolvedProcessorArgs();
+    boolean resetContextClassLoaders =
+        ProcessorClassLoaders.isResetThreadContextClassLoaders(getProject());
+    Logger logger = getLogger();
+    String path = getPath();
+    URL[] processorPath = AnnotationProcessing.toUrls(annotationProcessorPath);
+    ExecutorService executor = Executors.newFixedThreadPool(partitionFiles.size());
+    try {
+      List<Future<File>> futures = new ArrayList<>();
+      for (int i = 0; i < partitionFiles.size(); i++) {
+        File partitionDir = new File(getTemporaryDir(), "partition" + i);
+        AnnotationProcessing processing =
+            new AnnotationProcessing(compileOptions, aptOptions, classpath, partitionFiles.get(i));
+        processing.setProcessorNames(isolatingProcessors);
+        processing.setProcessorArgs(processorArgs);
+        processing.setSourcepath(sourcepath);
+        // types generated in other partitions can't be resolved; the compile task reports errors
+        processing.setDiagnosticListener(
+            diagnostic -> logger.debug("{}: {}", partitionDir.getName(), diagnostic));
+        futures.add(
+            executor.submit(
+                () ->
+                    processPartition(
+                        processing, processorPath, partitionDir, path, resetContextClassLoaders)));
+      }
+      Map<String, File> generatedBy = new HashMap<>();
+      for (Future<File> future : futures) {
+        File partitionDir = future.get();
+        merge(partitionDir, "sources", generatedSourcesDirectory, generatedBy);
+        merge(partitionDir, "resources", generatedResourcesDirectory, generatedBy);
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new GradleException("Annotation processing failed", cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static File processPartition(
+      AnnotationProcessing processing,
+      URL[] processorPath,
+      File partitionDir,
+      String owner,
+      boolean resetContextClassLoaders) {
+    ProcessorClassLoaders.ProcessorClassLoader processorClassLoader =
+        ProcessorClassLoaders.create(processorPath);
+    try {
+      processing.run(
+          processorClassLoader,
+          Function.identity(),
+          new File(partitionDir, "sources"),
+          new File(partitionDir, "resources"));
+    } finally {
+      ProcessorClassLoaders.release(resetContextClassLoaders, owner, processorClassLoader);
+    }
+    return partitionDir;
+  }
+
+  private static void merge(
+      File partitionDir, String dir, File targetDir, Map<String, File> generatedBy)
+      throws IOException {
+    Path root = new File(partitionDir, dir).toPath();
+    if (!Files.isDirectory(root)) {
+      return;
+    }
+    List<Path> files;
+    try (Stream<Path> stream = Files.walk(root)) {
+      files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      String relativePath = root.relativize(file).toString().replace(File.separatorChar, '/');
+      File previous = generatedBy.putIfAbsent(dir + "/" + relativePath, partitionDir);
+      if (previous != null) {
+        throw new GradleException(
+            "Both "
+                + previous.getName()
+                + " and "
+                + partitionDir.getName()
+                + " generated "
+                + relativePath
+                + "; are the processors really isolating?");
+      }
+      Path target = targetDir.toPath().toAbsolutePath().resolve(root.relativize(file));
+      Files.createDirectories(target.getParent());
+      Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
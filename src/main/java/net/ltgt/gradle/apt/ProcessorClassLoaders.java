@@ -0,0 +1,298 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.beans.Introspector;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+
+/**
+ * Keeps track of the annotation processor class loaders created by the plugin's tasks, so they can
+ * be released right after use, and those that survive garbage collection can be reported.
+ *
+ * <p>State is static on purpose: it has to outlive builds to detect leaks in long-lived daemons.
+ *
+ * <p>Cleanup is limited to what the plugin created: JDK caches are only flushed for the classes
+ * defined by the released class loader, and context class loaders only reset for threads started
+ * after the class loader was created (e.g. by annotation processors).
+ *
+ * <p>Class loaders created by Gradle for compile tasks running javac in-process can't be closed or
+ * flushed from the JDK caches, but those still referenced by threads started while the task ran
+ * are found and tracked the same way.
+ */
+final class ProcessorClassLoaders {
+  static final String RESET_THREAD_CONTEXT_CLASS_LOADERS_PROPERTY =
+      "net.ltgt.apt.resetProcessorThreadContextClassLoaders";
+  static final String DETECT_LEAKS_PROPERTY = "net.ltgt.apt.detectClassLoaderLeaks";
+
+  private static final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+  private static final Set<ReleasedClassLoader> released = ConcurrentHashMap.newKeySet();
+
+  private ProcessorClassLoaders() {
+    // non-instantiable
+  }
+
+  /** Creates a class loader for annotation processors, isolated from Gradle's classes. */
+  static ProcessorClassLoader create(URL[] annotationProcessorPath) {
+    return new ProcessorClassLoader(annotationProcessorPath);
+  }
+
+  /**
+   * Closes the class loader (and the jar files it opened), and clears the JDK caches known to
+   * retain its classes. When the {@value #RESET_THREAD_CONTEXT_CLASS_LOADERS_PROPERTY} project
+   * property is {@code true}, also resets the context class loader of threads started since its
+   * creation and left running with it.
+   */
+  static void release(Project project, String owner, ProcessorClassLoader classLoader) {
+    release(isResetThreadContextClassLoaders(project), owner, classLoader);
+  }
+
+  /**
+   * Same as {@link #release(Project, String, ProcessorClassLoader)}, for use outside the thread
+   * running the task, where the project cannot be accessed.
+   */
+  static void release(
+      boolean resetThreadContextClassLoaders, String owner, ProcessorClassLoader classLoader) {
+    try {
+      classLoader.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      ResourceBundle.clearCache(classLoader);
+      for (Class<?> cls : classLoader.definedClasses) {
+        Introspector.flushFromCaches(cls);
+      }
+      classLoader.definedClasses.clear();
+      if (resetThreadContextClassLoaders) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+          if (thread.getContextClassLoader() == classLoader
+              && !classLoader.preexistingThreads.contains(thread)) {
+            thread.setContextClassLoader(null);
+          }
+        }
+      }
+      classLoader.preexistingThreads.clear();
+      released.add(new ReleasedClassLoader(classLoader, owner, queue));
+    }
+  }
+
+  /**
+   * Returns the live threads, before a compile task runs annotation processors in-process, for
+   * {@link #releaseCompileTaskClassLoaders(Project, String, Set, Iterable)}; or {@code null} when
+   * neither project property is set, as there's nothing to release then.
+   */
+  @Nullable
+  static Set<Thread> snapshotThreads(Project project) {
+    if (!isResetThreadContextClassLoaders(project) && !isEnabled(project, DETECT_LEAKS_PROPERTY)) {
+      return null;
+    }
+    Set<Thread> threads = Collections.newSetFromMap(new WeakHashMap<>());
+    threads.addAll(Thread.getAllStackTraces().keySet());
+    return threads;
+  }
+
+  /**
+   * Finds the class loaders created by Gradle for the annotation processors of a compile task,
+   * through the threads started while it ran (that weren't in {@code preexistingThreads}) whose
+   * context class loader or class comes from the annotation processor path. Depending on the
+   * project properties, resets those context class loaders, and tracks those class loaders so that
+   * {@link #reportLeaks(Project, Logger)} can report them.
+   */
+  static void releaseCompileTaskClassLoaders(
+      Project project, String owner, Set<Thread> preexistingThreads, Iterable<File> processorPath) {
+    releaseCompileTaskClassLoaders(
+        isResetThreadContextClassLoaders(project),
+        isEnabled(project, DETECT_LEAKS_PROPERTY),
+        owner,
+        preexistingThreads,
+        processorPath);
+  }
+
+  /**
+   * Same as {@link #releaseCompileTaskClassLoaders(Project, String, Set, Iterable)}, with the
+   * values of the project properties.
+   */
+  static void releaseCompileTaskClassLoaders(
+      boolean resetThreadContextClassLoaders,
+      boolean detectLeaks,
+      String owner,
+      Set<Thread> preexistingThreads,
+      Iterable<File> processorPath) {
+    Set<String> urls = new HashSet<>();
+    for (URL url : AnnotationProcessing.toUrls(processorPath)) {
+      urls.add(url.toString());
+    }
+    Set<ClassLoader> found = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (preexistingThreads.contains(thread)) {
+        continue;
+      }
+      ClassLoader contextClassLoader = thread.getContextClassLoader();
+      if (isLoadingFrom(contextClassLoader, urls)) {
+        found.add(contextClassLoader);
+        if (resetThreadContextClassLoaders) {
+          thread.setContextClassLoader(null);
+        }
+      }
+      ClassLoader threadClassLoader = thread.getClass().getClassLoader();
+      if (isLoadingFrom(threadClassLoader, urls)) {
+        found.add(threadClassLoader);
+      }
+    }
+    if (detectLeaks) {
+      for (ClassLoader classLoader : found) {
+        if (released.stream().noneMatch(ref -> ref.get() == classLoader)) {
+          released.add(new ReleasedClassLoader(classLoader, owner, queue));
+        }
+      }
+    }
+  }
+
+  /** Returns whether the class loader only loads from (some of) the given URLs. */
+  private static boolean isLoadingFrom(@Nullable ClassLoader classLoader, Set<String> urls) {
+    if (!(classLoader instanceof URLClassLoader)) {
+      return false;
+    }
+    URL[] classLoaderUrls = ((URLClassLoader) classLoader).getURLs();
+    if (classLoaderUrls.length == 0) {
+      return false;
+    }
+    for (URL url : classLoaderUrls) {
+      if (!urls.contains(url.toString())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * When the {@value #DETECT_LEAKS_PROPERTY} project property is {@code true}, warns about
+   * previously released class loaders that are still reachable, each only once.
+   *
+   * <p>A garbage collection is only triggered when debug logging is enabled; otherwise, reported
+   * class loaders might just not have been collected yet.
+   */
+  static void reportLeaks(Project project, Logger logger) {
+    if (!isEnabled(project, DETECT_LEAKS_PROPERTY)) {
+      return;
+    }
+    if (logger.isDebugEnabled()) {
+      System.gc();
+    }
+    expungeCollected();
+    for (ReleasedClassLoader ref : released) {
+      ClassLoader classLoader = ref.get();
+      if (classLoader == null || ref.reported) {
+        continue;
+      }
+      ref.reported = true;
+      logger.warn(
+          "Annotation processor class loader created by {} survived garbage collection;"
+              + " possible retention paths:\n  {}",
+          ref.owner,
+          String.join("\n  ", describeRetention(classLoader)));
+    }
+  }
+
+  private static void expungeCollected() {
+    for (Reference<? extends ClassLoader> ref = queue.poll(); ref != null; ref = queue.poll()) {
+      released.remove(ref);
+    }
+  }
+
+  private static List<String> describeRetention(ClassLoader classLoader) {
+    List<String> paths = new ArrayList<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getContextClassLoader() == classLoader) {
+        paths.add("context class loader of thread '" + thread.getName() + "'");
+      }
+      if (thread.getClass().getClassLoader() == classLoader) {
+        paths.add(
+            "thread '"
+                + thread.getName()
+                + "' is an instance of "
+                + thread.getClass().getName()
+                + " (threads are GC roots)");
+      }
+    }
+    if (paths.isEmpty()) {
+      paths.add(
+          "unknown (e.g. a static field or thread-local outside the processors);"
+              + " take a heap dump and look for the paths to GC roots of the class loader");
+    }
+    return paths;
+  }
+
+  static boolean isResetThreadContextClassLoaders(Project project) {
+    return isEnabled(project, RESET_THREAD_CONTEXT_CLASS_LOADERS_PROPERTY);
+  }
+
+  private static boolean isEnabled(Project project, String propertyName) {
+    Object value = project.findProperty(propertyName);
+    return value != null && Boolean.parseBoolean(value.toString());
+  }
+
+  /**
+   * A class loader for annotation processors, keeping track of the classes it defines and of the
+   * threads that existed before its creation, for {@link #release(boolean, String,
+   * ProcessorClassLoader)}.
+   */
+  static class ProcessorClassLoader extends URLClassLoader {
+    final Set<Class<?>> definedClasses = ConcurrentHashMap.newKeySet();
+    final Set<Thread> preexistingThreads =
+        Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    ProcessorClassLoader(URL[] urls) {
+      super(urls, AnnotationProcessing.getPlatformClassLoader());
+      preexistingThreads.addAll(Thread.getAllStackTraces().keySet());
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      Class<?> c = super.findClass(name);
+      definedClasses.add(c);
+      return c;
+    }
+  }
+
+  private static class ReleasedClassLoader extends WeakReference<ClassLoader> {
+    final String owner;
+    volatile boolean reported;
+
+    ReleasedClassLoader(ClassLoader referent, String owner, ReferenceQueue<ClassLoader> queue) {
+      super(referent, queue);
+      this.owner = owner;
+    }
+  }
+}
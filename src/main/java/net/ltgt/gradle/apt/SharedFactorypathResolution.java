@@ -0,0 +1,297 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.Dependency;
+import org.gradle.api.artifacts.DependencyArtifact;
+import org.gradle.api.artifacts.ExcludeRule;
+import org.gradle.api.artifacts.ExternalModuleDependency;
+import org.gradle.api.artifacts.FileCollectionDependency;
+import org.gradle.api.artifacts.ModuleDependency;
+import org.gradle.api.artifacts.ModuleVersionSelector;
+import org.gradle.api.artifacts.VersionConstraint;
+import org.gradle.api.artifacts.repositories.ArtifactRepository;
+import org.gradle.api.artifacts.repositories.FlatDirectoryArtifactRepository;
+import org.gradle.api.artifacts.repositories.IvyArtifactRepository;
+import org.gradle.api.artifacts.repositories.MavenArtifactRepository;
+import org.gradle.api.attributes.Attribute;
+import org.gradle.api.attributes.AttributeContainer;
+import org.gradle.api.plugins.ExtensionContainer;
+import org.gradle.util.GradleVersion;
+
+/**
+ * Shares the files resolved for factorypath configurations across all the projects of a build,
+ * such that projects declaring the same annotation processor dependencies only resolve them once.
+ * The results are held by an extension of the root project, registered while the projects are
+ * configured.
+ *
+ * <p>Configurations are deduplicated by a hash of their dependency declarations (including those
+ * of the configurations they extend, their exclude rules, attributes, rich versions and forced
+ * modules) and of the URLs and directories of the project's repositories. Resolution rules (e.g.
+ * dependency substitutions) and repository settings such as metadata sources or content filters
+ * can't be inspected, so this is opt-in through the {@value #SHARE_RESOLUTION_PROPERTY} project
+ * property; configurations with project dependencies, dependency constraints, or dependencies or
+ * repositories of unknown kinds, are never shared.
+ *
+ * <p>A project resolving a configuration that another project is already resolving waits for that
+ * resolution to finish. As configurations with project dependencies aren't shared, that resolution
+ * never needs the state of the waiting project.
+ */
+final class SharedFactorypathResolution {
+  static final String SHARE_RESOLUTION_PROPERTY =
+      "net.ltgt.apt.eclipse.shareFactorypathResolution";
+
+  // ModuleDependency.getAttributes() was added in Gradle 4.8
+  private static final boolean HAS_DEPENDENCY_ATTRIBUTES = isAtLeast("4.8");
+  // Rich versions were progressively added: prefer in Gradle 4.4, reject in 4.5, branch and
+  // dependency constraints in 4.6, require and strictly in 5.0
+  private static final boolean HAS_VERSION_CONSTRAINT = isAtLeast("4.4");
+  private static final boolean HAS_REJECTED_VERSIONS = isAtLeast("4.5");
+  private static final boolean HAS_DEPENDENCY_CONSTRAINTS = isAtLeast("4.6");
+  private static final boolean HAS_STRICT_VERSION = isAtLeast("5.0");
+
+  private static final String EXTENSION_NAME = "aptSharedFactorypathResolution";
+
+  /**
+   * Registers the shared resolution results on the root project, if the {@value
+   * #SHARE_RESOLUTION_PROPERTY} project property is {@code true}. Must be called while the project
+   * is being configured.
+   */
+  static void register(Project project) {
+    if (!isEnabled(project)) {
+      return;
+    }
+    ExtensionContainer extensions = project.getRootProject().getExtensions();
+    synchronized (SharedFactorypathResolution.class) {
+      if (extensions.findByType(SharedFactorypathResolution.class) == null) {
+        extensions.add(
+            SharedFactorypathResolution.class, EXTENSION_NAME, new SharedFactorypathResolution());
+      }
+    }
+  }
+
+  /**
+   * Returns the shared resolution results for the build the project belongs to, or {@code null} if
+   * the {@value #SHARE_RESOLUTION_PROPERTY} project property isn't {@code true}.
+   */
+  @Nullable
+  static SharedFactorypathResolution forProject(Project project) {
+    return isEnabled(project)
+        ? project.getRootProject().getExtensions().findByType(SharedFactorypathResolution.class)
+        : null;
+  }
+
+  private static boolean isEnabled(Project project) {
+    Object value = project.findProperty(SHARE_RESOLUTION_PROPERTY);
+    return value != null && Boolean.parseBoolean(value.toString());
+  }
+
+  private final ConcurrentMap<String, CompletableFuture<Set<File>>> results =
+      new ConcurrentHashMap<>();
+
+  private SharedFactorypathResolution() {}
+
+  /**
+   * Returns the files resolved by {@code resolver} for the configuration, or those previously
+   * resolved for a configuration with the same declarations and the same {@code variant}.
+   */
+  Set<File> getFiles(
+      Project project,
+      Configuration configuration,
+      String variant,
+      Function<Configuration, Set<File>> resolver) {
+    String key = computeKey(project, configuration, variant);
+    if (key == null) {
+      return resolver.apply(configuration);
+    }
+    CompletableFuture<Set<File>> future = new CompletableFuture<>();
+    CompletableFuture<Set<File>> existing = results.putIfAbsent(key, future);
+    if (existing != null) {
+      Set<File> files;
+      try {
+        files = existing.join();
+      } catch (CompletionException e) {
+        // Report the error in this project too
+        return resolver.apply(configuration);
+      }
+      project
+          .getLogger()
+          .info("Reusing shared resolution result for {} of {}", configuration.getName(), project);
+      return files;
+    }
+    try {
+      Set<File> files =
+          Collections.unmodifiableSet(new LinkedHashSet<>(resolver.apply(configuration)));
+      future.complete(files);
+      return files;
+    } catch (RuntimeException | Error e) {
+      results.remove(key, future);
+      future.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  @Nullable
+  private static String computeKey(Project project, Configuration configuration, String variant) {
+    List<String> declarations = new ArrayList<>();
+    declarations.add("variant " + variant);
+    for (ArtifactRepository repository : project.getRepositories()) {
+      if (repository instanceof MavenArtifactRepository) {
+        MavenArtifactRepository maven = (MavenArtifactRepository) repository;
+        declarations.add("maven " + maven.getUrl() + " " + maven.getArtifactUrls());
+      } else if (repository instanceof IvyArtifactRepository) {
+        declarations.add("ivy " + ((IvyArtifactRepository) repository).getUrl());
+      } else if (repository instanceof FlatDirectoryArtifactRepository) {
+        declarations.add("flatDir " + ((FlatDirectoryArtifactRepository) repository).getDirs());
+      } else {
+        return null;
+      }
+    }
+    for (ModuleVersionSelector forcedModule :
+        configuration.getResolutionStrategy().getForcedModules()) {
+      declarations.add("force " + forcedModule);
+    }
+    declarations.add("attributes " + describe(configuration.getAttributes()));
+    for (Configuration c : configuration.getHierarchy()) {
+      if (HAS_DEPENDENCY_CONSTRAINTS && !c.getDependencyConstraints().isEmpty()) {
+        return null;
+      }
+      declarations.add("configuration transitive=" + c.isTransitive());
+      for (ExcludeRule excludeRule : c.getExcludeRules()) {
+        declarations.add("exclude " + describe(excludeRule));
+      }
+      for (Dependency dependency : c.getDependencies()) {
+        String declaration = describe(dependency);
+        if (declaration == null) {
+          return null;
+        }
+        declarations.add(declaration);
+      }
+    }
+    return hash(declarations);
+  }
+
+  @Nullable
+  private static String describe(Dependency dependency) {
+    StringBuilder sb = new StringBuilder();
+    if (dependency instanceof ExternalModuleDependency) {
+      ExternalModuleDependency moduleDependency = (ExternalModuleDependency) dependency;
+      sb.append("module ")
+          .append(dependency.getGroup())
+          .append(':')
+          .append(dependency.getName())
+          .append(':')
+          .append(dependency.getVersion())
+          .append(" changing=")
+          .append(moduleDependency.isChanging());
+      if (HAS_VERSION_CONSTRAINT) {
+        sb.append(" version=").append(describe(moduleDependency.getVersionConstraint()));
+      }
+    } else if (dependency instanceof FileCollectionDependency) {
+      return "files " + ((FileCollectionDependency) dependency).getFiles().getFiles();
+    } else {
+      return null;
+    }
+    ModuleDependency moduleDependency = (ModuleDependency) dependency;
+    sb.append(" configuration=")
+        .append(moduleDependency.getTargetConfiguration())
+        .append(" transitive=")
+        .append(moduleDependency.isTransitive());
+    if (HAS_DEPENDENCY_ATTRIBUTES) {
+      sb.append(" attributes=").append(describe(moduleDependency.getAttributes()));
+    }
+    for (ExcludeRule excludeRule : moduleDependency.getExcludeRules()) {
+      sb.append(" exclude=").append(describe(excludeRule));
+    }
+    for (DependencyArtifact artifact : moduleDependency.getArtifacts()) {
+      sb.append(" artifact=")
+          .append(artifact.getName())
+          .append(':')
+          .append(artifact.getClassifier())
+          .append('@')
+          .append(artifact.getExtension());
+    }
+    return sb.toString();
+  }
+
+  private static String describe(VersionConstraint versionConstraint) {
+    StringBuilder sb =
+        new StringBuilder("{prefer ").append(versionConstraint.getPreferredVersion());
+    if (HAS_REJECTED_VERSIONS) {
+      sb.append(" reject ").append(versionConstraint.getRejectedVersions());
+    }
+    if (HAS_DEPENDENCY_CONSTRAINTS) {
+      sb.append(" branch ").append(versionConstraint.getBranch());
+    }
+    if (HAS_STRICT_VERSION) {
+      sb.append(" require ")
+          .append(versionConstraint.getRequiredVersion())
+          .append(" strictly ")
+          .append(versionConstraint.getStrictVersion());
+    }
+    return sb.append('}').toString();
+  }
+
+  private static boolean isAtLeast(String version) {
+    return GradleVersion.current().getBaseVersion().compareTo(GradleVersion.version(version))
+        >= 0;
+  }
+
+  private static String describe(ExcludeRule excludeRule) {
+    return excludeRule.getGroup() + ":" + excludeRule.getModule();
+  }
+
+  private static String describe(AttributeContainer attributes) {
+    StringBuilder sb = new StringBuilder("{");
+    for (Attribute<?> attribute : attributes.keySet()) {
+      sb.append(attribute.getName())
+          .append('=')
+          .append(attributes.getAttribute(attribute))
+          .append(',');
+    }
+    return sb.append('}').toString();
+  }
+
+  private static String hash(List<String> declarations) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (String declaration : declarations) {
+        digest.update(declaration.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+      }
+      return AptFingerprints.toHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import javax.annotation.processing.Processor;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Checks that every processor option ({@code -A} argument) is supported by at least one of the
+ * annotation processors, failing before the compile task runs rather than having javac only emit
+ * a warning.
+ *
+ * <p>The task is disabled by default; when enabled, the compile task depends on it.
+ */
+public class ValidateAnnotationProcessorOptions extends DefaultTask {
+  private FileCollection annotationProcessorPath;
+  private File resultFile;
+
+  @SuppressWarnings("NullAway.Init") // will be initialized by setAptOptions after creation
+  private Supplier<AptPlugin.AptOptions> aptOptions;
+
+  @SuppressWarnings("NullAway") // aptOptions will be initialized right after
+  public ValidateAnnotationProcessorOptions() {
+    annotationProcessorPath = getProject().files();
+    resultFile = new File(getTemporaryDir(), "supportedOptions.txt");
+    setEnabled(false);
+  }
+
+  @Classpath
+  public FileCollection getAnnotationProcessorPath() {
+    return annotationProcessorPath;
+  }
+
+  public void setAnnotationProcessorPath(FileCollection annotationProcessorPath) {
+    this.annotationProcessorPath = annotationProcessorPath;
+  }
+
+  /** Lists the options supported by each processor, once validated. */
+  @OutputFile
+  public File getResultFile() {
+    return resultFile;
+  }
+
+  public void setResultFile(File resultFile) {
+    this.resultFile = resultFile;
+  }
+
+  @Internal
+  public AptPlugin.AptOptions getAptOptions() {
+    return aptOptions.get();
+  }
+
+  public void setAptOptions(AptPlugin.AptOptions aptOptions) {
+    this.aptOptions = () -> aptOptions;
+  }
+
+  /** Sets the options from the compile task, without creating it before they're needed. */
+  void setAptOptionsSupplier(Supplier<AptPlugin.AptOptions> aptOptions) {
+    this.aptOptions = aptOptions;
+  }
+
+  @Input
+  @Optional
+  @Nullable
+  public List<String> getProcessors() {
+    List<?> processors = getAptOptions().getProcessors();
+    if (processors == null) {
+      return null;
+    }
+    List<String> names = new ArrayList<>();
+    for (Object processor : processors) {
+      names.add(String.valueOf(processor));
+    }
+    return names;
+  }
+
+  /** Only the option names are validated, so changing their values won't re-run the task. */
+  @Input
+  public Set<String> getProcessorArgNames() {
+    Map<String, String> processorArgs = getAptOptions().getEffectiveProcessorArgs();
+    return processorArgs == null
+        ? Collections.emptySet()
+        : Collections.unmodifiableSet(new TreeSet<>(processorArgs.keySet()));
+  }
+
+  @TaskAction
+  public void validate() {
+    ProcessorClassLoaders.reportLeaks(getProject(), getLogger());
+    AptPlugin.AptOptions aptOptions = getAptOptions();
+    Map<String, Set<String>> supportedOptions = new TreeMap<>();
+    Set<String> processorsWithUnknownOptions = new TreeSet<>();
+    ProcessorClassLoaders.ProcessorClassLoader processorClassLoader =
+        ProcessorClassLoaders.create(AnnotationProcessing.toUrls(annotationProcessorPath));
+    try {
+      for (Processor processor :
+          AnnotationProcessing.loadProcessors(aptOptions.getProcessors(), processorClassLoader)) {
+        Set<String> options;
+        try {
+          // getSupportedOptions is called before init, so processors computing their options
+          // from the processing environment can fail; options can still be validated against
+          // the other processors.
+          options = processor.getSupportedOptions();
+        } catch (RuntimeException e) {
+          getLogger()
+              .warn(
+                  "Cannot get supported options of {}, its options won't be validated",
+                  processor.getClass().getName(),
+                  e);
+          processorsWithUnknownOptions.add(processor.getClass().getName());
+          continue;
+        }
+        supportedOptions.put(processor.getClass().getName(), new TreeSet<>(options));
+      }
+    } finally {
+      ProcessorClassLoaders.release(getProject(), getPath(), processorClassLoader);
+    }
+
+    // The result is written even if validation fails; processors whose options are unknown are
+    // listed without any value.
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, Set<String>> entry : supportedOptions.entrySet()) {
+      lines.add(entry.getKey() + "=" + String.join(",", entry.getValue()));
+    }
+    for (String processorName : processorsWithUnknownOptions) {
+      lines.add(processorName);
+    }
+    try {
+      Files.createDirectories(resultFile.toPath().toAbsolutePath().getParent());
+      Files.write(resultFile.toPath(), lines, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    Set<String> unsupported = new TreeSet<>(getProcessorArgNames());
+    for (Set<String> options : supportedOptions.values()) {
+      unsupported.removeAll(options);
+    }
+    if (!processorsWithUnknownOptions.isEmpty() && !unsupported.isEmpty()) {
+      // those options might be supported by the processors whose options are unknown
+      getLogger()
+          .warn(
+              "Processor options not supported by any other annotation processor than {}: {}",
+              String.join(", ", processorsWithUnknownOptions),
+              String.join(", ", unsupported));
+      unsupported.clear();
+    }
+    // options scoped to a processor have to be supported by that processor
+    for (AptPlugin.AptOptions.ProcessorOptions options : aptOptions.getProcessorOptionsInUse()) {
+      Set<String> supported = supportedOptions.get(options.getProcessorName());
+      if (supported == null) {
+        continue;
+      }
+      for (String name : options.getArgs().keySet()) {
+        if (!supported.contains(name)) {
+          unsupported.remove(name);
+          unsupported.add(name + " (scoped to " + options.getProcessorName() + ")");
+        }
+      }
+    }
+    if (!unsupported.isEmpty()) {
+      StringBuilder message =
+          new StringBuilder("Processor options not supported by any annotation processor: ")
+              .append(String.join(", ", unsupported))
+              .append("\nSupported options are:");
+      for (Map.Entry<String, Set<String>> entry : supportedOptions.entrySet()) {
+        message
+            .append("\n  ")
+            .append(entry.getKey())
+            .append(": ")
+            .append(entry.getValue().isEmpty() ? "(none)" : String.join(", ", entry.getValue()));
+      }
+      throw new GradleException(message.toString());
+    }
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.SkipWhenEmpty;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Runs annotation processors twice over the same sources, in isolated directories, and compares
+ * the generated sources and resources byte-for-byte.
+ *
+ * <p>Processors are wrapped to record which one generated each file; processors that depend on
+ * javac internals (casting the {@link ProcessingEnvironment}) can't be verified that way.
+ */
+public class VerifyAnnotationProcessorDeterminism extends AnnotationProcessingTask {
+  private static final String SOURCES_DIR = "sources";
+  private static final String RESOURCES_DIR = "resources";
+
+  private FileCollection source;
+  private FileCollection classpath;
+  private FileCollection annotationProcessorPath;
+
+  public VerifyAnnotationProcessorDeterminism() {
+    source = getProject().files();
+    classpath = getProject().files();
+    annotationProcessorPath = getProject().files();
+  }
+
+  @InputFiles
+  @SkipWhenEmpty
+  @PathSensitive(PathSensitivity.RELATIVE)
+  public FileCollection getSource() {
+    return source;
+  }
+
+  public void setSource(FileCollection source) {
+    this.source = source;
+  }
+
+  @Classpath
+  public FileCollection getClasspath() {
+    return classpath;
+  }
+
+  public void setClasspath(FileCollection classpath) {
+    this.classpath = classpath;
+  }
+
+  @Classpath
+  public FileCollection getAnnotationProcessorPath() {
+    return annotationProcessorPath;
+  }
+
+  public void setAnnotationProcessorPath(FileCollection annotationProcessorPath) {
+    this.annotationProcessorPath = annotationProcessorPath;
+  }
+
+  @TaskAction
+  public void verify() {
+    ProcessorClassLoaders.reportLeaks(getProject(), getLogger());
+    File firstRun = new File(getTemporaryDir(), "first");
+    File secondRun = new File(getTemporaryDir(), "second");
+    Map<String, String> generatedBy = new TreeMap<>();
+    runProcessing(firstRun, generatedBy);
+    runProcessing(secondRun, generatedBy);
+
+    List<String> differences = new ArrayList<>();
+    compare(firstRun, secondRun, SOURCES_DIR, generatedBy, differences);
+    compare(firstRun, secondRun, RESOURCES_DIR, generatedBy, differences);
+    if (!differences.isEmpty()) {
+      throw new GradleException(
+          "Annotation processors generated different outputs across two identical runs:\n  "
+              + String.join("\n  ", differences)
+              + "\nOutputs of both runs are kept in "
+              + getTemporaryDir());
+    }
+  }
+
+  private void runProcessing(File runDir, Map<String, String> generatedBy) {
+    getProject().delete(runDir);
+    runDir.mkdirs();
+    URI runDirUri = runDir.toURI();
+    ProcessorClassLoaders.ProcessorClassLoader processorClassLoader =
+        ProcessorClassLoaders.create(AnnotationProcessing.toUrls(annotationProcessorPath));
+    try {
+      new AnnotationProcessing(getCompileOptions(), getAptOptions(), classpath, source.getFiles())
+          .run(
+              processorClassLoader,
+              processor -> new RecordingProcessor(processor, runDirUri, generatedBy),
+              new File(runDir, SOURCES_DIR),
+              new File(runDir, RESOURCES_DIR));
+    } finally {
+      ProcessorClassLoaders.release(getProject(), getPath(), processorClassLoader);
+    }
+  }
+
+  private static void compare(
+      File firstRun,
+      File secondRun,
+      String dir,
+      Map<String, String> generatedBy,
+      List<String> differences) {
+    Path first = firstRun.toPath().resolve(dir);
+    Path second = secondRun.toPath().resolve(dir);
+    Set<String> paths = new TreeSet<>();
+    paths.addAll(listFiles(first));
+    paths.addAll(listFiles(second));
+    for (String path : paths) {
+      Path firstFile = first.resolve(path);
+      Path secondFile = second.resolve(path);
+      String difference;
+      if (!Files.exists(secondFile)) {
+        difference = "only generated in the first run";
+      } else if (!Files.exists(firstFile)) {
+        difference = "only generated in the second run";
+      } else if (!Arrays.equals(readAllBytes(firstFile), readAllBytes(secondFile))) {
+        difference = "content differs";
+      } else {
+        continue;
+      }
+      String relativePath = dir + "/" + path;
+      String processor = generatedBy.get(relativePath);
+      differences.add(
+          relativePath
+              + (processor == null ? "" : " (generated by " + processor + ")")
+              + ": "
+              + difference);
+    }
+  }
+
+  private static List<String> listFiles(Path dir) {
+    if (!Files.isDirectory(dir)) {
+      return Collections.emptyList();
+    }
+    try (Stream<Path> files = Files.walk(dir)) {
+      return files
+          .filter(Files::isRegularFile)
+          .map(f -> dir.relativize(f).toString().replace(File.separatorChar, '/'))
+          .collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] readAllBytes(Path file) {
+    try {
+      return Files.readAllBytes(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static class RecordingProcessor implements Processor {
+    private final Processor delegate;
+    private final URI runDir;
+    private final Map<String, String> generatedBy;
+
+    RecordingProcessor(Processor delegate, URI runDir, Map<String, String> generatedBy) {
+      this.delegate = delegate;
+      this.runDir = runDir;
+      this.generatedBy = generatedBy;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+      return delegate.getSupportedOptions();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+      return delegate.getSupportedAnnotationTypes();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return delegate.getSupportedSourceVersion();
+    }
+
+    @Override
+    public void init(ProcessingEnvironment processingEnv) {
+      delegate.init(new RecordingProcessingEnvironment(processingEnv, this));
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+      return delegate.process(annotations, roundEnv);
+    }
+
+    @Override
+    public Iterable<? extends Completion> getCompletions(
+        Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+      return delegate.getCompletions(element, annotation, member, userText);
+    }
+
+    <T extends FileObject> T record(T fileObject) {
+      generatedBy.put(
+          runDir.relativize(fileObject.toUri()).getPath(), delegate.getClass().getName());
+      return fileObject;
+    }
+  }
+
+  private static class RecordingProcessingEnvironment implements ProcessingEnvironment {
+    private final ProcessingEnvironment delegate;
+    private final Filer filer;
+
+    RecordingProcessingEnvironment(ProcessingEnvironment delegate, RecordingProcessor processor) {
+      this.delegate = delegate;
+      this.filer = new RecordingFiler(delegate.getFiler(), processor);
+    }
+
+    @Override
+    public Map<String, String> getOptions() {
+      return delegate.getOptions();
+    }
+
+    @Override
+    public Messager getMessager() {
+      return delegate.getMessager();
+    }
+
+    @Override
+    public Filer getFiler() {
+      return filer;
+    }
+
+    @Override
+    public Elements getElementUtils() {
+      return delegate.getElementUtils();
+    }
+
+    @Override
+    public Types getTypeUtils() {
+      return delegate.getTypeUtils();
+    }
+
+    @Override
+    public SourceVersion getSourceVersion() {
+      return delegate.getSourceVersion();
+    }
+
+    @Override
+    public Locale getLocale() {
+      return delegate.getLocale();
+    }
+  }
+
+  private static class RecordingFiler implements Filer {
+    private final Filer delegate;
+    private final RecordingProcessor processor;
+
+    RecordingFiler(Filer delegate, RecordingProcessor processor) {
+      this.delegate = delegate;
+      this.processor = processor;
+    }
+
+    @Override
+    public JavaFileObject createSourceFile(CharSequence name, Element... originatingElements)
+        throws IOException {
+      return processor.record(delegate.createSourceFile(name, originatingElements));
+    }
+
+    @Override
+    public JavaFileObject createClassFile(CharSequence name, Element... originatingElements)
+        throws IOException {
+      return processor.record(delegate.createClassFile(name, originatingElements));
+    }
+
+    @Override
+    public FileObject createResource(
+        JavaFileManager.Location location,
+        CharSequence pkg,
+        CharSequence relativeName,
+        Element... originatingElements)
+        throws IOException {
+      return processor.record(
+          delegate.createResource(location, pkg, relativeName, originatingElements));
+    }
+
+    @Override
+    public FileObject getResource(
+        JavaFileManager.Location location, CharSequence pkg, CharSequence relativeName)
+        throws IOException {
+      return delegate.getResource(location, pkg, relativeName);
+    }
+  }
+}
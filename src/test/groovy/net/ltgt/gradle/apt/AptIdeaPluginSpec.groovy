@@ -22,4 +22,47 @@ class AptIdeaPluginSpec extends PluginProjectSpec {
   String getPluginName() {
     return "net.ltgt.apt-idea"
   }
+
+  def "delegated build default depends on IDEA version"() {
+    expect:
+    AptIdeaPlugin.isDelegatedBuildDefault(ideaVersion) == expected
+
+    where:
+    ideaVersion  | expected
+    '2018.3.6'   | false
+    '2019.1'     | true
+    '2019.3.1'   | true
+    '2020.1'     | true
+    ''           | false
+  }
+
+  def "addAptDependencies still defaults to true with delegated build"() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'java'
+    project.idea.project.delegatedBuild = true
+
+    then:
+    project.idea.module.apt.addAptDependencies
+  }
+
+  def "module source dirs can still be modified"() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'java'
+    project.evaluate()
+    def generatedDir = project.file('build/generated/sources/annotationProcessor/java/main')
+    def extraDir = project.file('src/extra/java')
+
+    then:
+    project.idea.module.sourceDirs.contains(generatedDir)
+
+    when:
+    project.idea.module.sourceDirs.add(extraDir)
+    project.idea.module.sourceDirs.remove(generatedDir)
+
+    then:
+    project.idea.module.sourceDirs.contains(extraDir)
+    !project.idea.module.sourceDirs.contains(generatedDir)
+  }
 }
@@ -310,6 +310,1263 @@ class AptPluginIntegrationSpec extends Specification {
     new File(testProjectDir.root, 'core/build/classes/java/main/annotated-elements').text.trim() == "core.HelloWorld"
   }
 
+  def "verify annotation processor determinism"() {
+    given:
+    settingsFile << """\
+      include 'annotations'
+      include 'processor'
+      include 'core'
+    """.stripIndent()
+
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+      }
+      project('core') {
+        apply plugin: 'net.ltgt.apt'
+
+        dependencies {
+          compileOnly project(':annotations')
+          annotationProcessor project(':processor')
+        }
+      }
+    """.stripIndent()
+
+    def f = new File(testProjectDir.newFolder('annotations', 'src', 'main', 'java', 'annotations'), 'MyAnnotation.java')
+    f.createNewFile()
+    f << """\
+      package annotations;
+
+      public @interface MyAnnotation {
+      }
+    """.stripIndent()
+
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'java', 'processor'), 'MyAnnotationProcessor.java')
+    f.createNewFile()
+    f << """\
+      package processor;
+
+      import javax.annotation.processing.AbstractProcessor;
+      import javax.annotation.processing.RoundEnvironment;
+      import javax.annotation.processing.SupportedAnnotationTypes;
+      import javax.lang.model.SourceVersion;
+      import javax.lang.model.element.TypeElement;
+      import javax.lang.model.util.ElementFilter;
+      import javax.tools.Diagnostic;
+      import javax.tools.FileObject;
+      import javax.tools.StandardLocation;
+      import java.io.IOException;
+      import java.io.PrintWriter;
+      import java.util.Set;
+      import java.util.TreeSet;
+
+      @SupportedAnnotationTypes(MyAnnotationProcessor.MY_ANNOTATION)
+      public class MyAnnotationProcessor extends AbstractProcessor {
+
+        static final String MY_ANNOTATION = "annotations.MyAnnotation";
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+          return SourceVersion.latest();
+        }
+
+        private Set<String> annotatedElements = new TreeSet<>();
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+          for (TypeElement annotatedElement : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(
+              processingEnv.getElementUtils().getTypeElement(MY_ANNOTATION)))) {
+            annotatedElements.add(annotatedElement.getQualifiedName().toString());
+          }
+          if (roundEnv.processingOver()) {
+            try {
+              FileObject f = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", "annotated-elements");
+              try (PrintWriter w = new PrintWriter(f.openWriter())) {
+                for (String annotatedElement : annotatedElements) {
+                  w.println(annotatedElement);
+                }
+                w.println(System.nanoTime());
+              }
+            } catch (IOException e) {
+              processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage());
+            }
+          }
+          return false;
+        }
+      }
+    """.stripIndent()
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+    f.createNewFile()
+    f << """\
+      processor.MyAnnotationProcessor
+    """.stripIndent()
+
+    f = new File(testProjectDir.newFolder('core', 'src', 'main', 'java', 'core'), 'HelloWorld.java')
+    f.createNewFile()
+    f << """\
+      package core;
+
+      import annotations.MyAnnotation;
+
+      @MyAnnotation
+      public class HelloWorld {
+        public String sayHello(String name) {
+          return "Hello, " + name + "!";
+        }
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+            .withGradleVersion(TEST_GRADLE_VERSION)
+            .withProjectDir(testProjectDir.root)
+            .withArguments(':core:verifyAnnotationProcessorDeterminism')
+            .buildAndFail()
+
+    then:
+    result.task(':core:verifyAnnotationProcessorDeterminism').outcome == TaskOutcome.FAILED
+    result.output.contains("resources/annotated-elements (generated by processor.MyAnnotationProcessor): content differs")
+  }
+
+  def "java project with separate generated resources"() {
+    given:
+    settingsFile << """\
+      include 'annotations'
+      include 'processor'
+      include 'core'
+    """.stripIndent()
+
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+      }
+      project('core') {
+        apply plugin: 'net.ltgt.apt'
+
+        dependencies {
+          compileOnly project(':annotations')
+          annotationProcessor project(':processor')
+        }
+
+        compileJava {
+          aptOptions.parallelIsolatingProcessing = true
+        }
+
+        task generatedResourcesJar(type: Jar) {
+          classifier = 'generated'
+          from sourceSets.main.output.generatedResourcesDirs
+        }
+      }
+    """.stripIndent()
+
+    def f = new File(testProjectDir.newFolder('annotations', 'src', 'main', 'java', 'annotations'), 'MyAnnotation.java')
+    f.createNewFile()
+    f << """\
+      package annotations;
+
+      public @interface MyAnnotation {
+      }
+    """.stripIndent()
+
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'java', 'processor'), 'MyAnnotationProcessor.java')
+    f.createNewFile()
+    f << """\
+      package processor;
+
+      import javax.annotation.processing.AbstractProcessor;
+      import javax.annotation.processing.RoundEnvironment;
+      import javax.annotation.processing.SupportedAnnotationTypes;
+      import javax.lang.model.SourceVersion;
+      import javax.lang.model.element.TypeElement;
+      import javax.lang.model.util.ElementFilter;
+      import javax.tools.StandardLocation;
+      import java.io.IOException;
+      import java.io.UncheckedIOException;
+      import java.io.Writer;
+      import java.util.Set;
+
+      @SupportedAnnotationTypes("annotations.MyAnnotation")
+      public class MyAnnotationProcessor extends AbstractProcessor {
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+          return SourceVersion.latest();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+          for (TypeElement annotation : annotations) {
+            for (TypeElement element : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(annotation))) {
+              try (Writer w = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "core", element.getSimpleName() + ".txt", element).openWriter()) {
+                w.write(element.getQualifiedName().toString());
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+          }
+          return false;
+        }
+      }
+    """.stripIndent()
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+    f.createNewFile()
+    f << """\
+      processor.MyAnnotationProcessor
+    """.stripIndent()
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'gradle'), 'incremental.annotation.processors')
+    f.createNewFile()
+    f << "processor.MyAnnotationProcessor,isolating\n"
+
+    f = new File(testProjectDir.newFolder('core', 'src', 'main', 'java', 'core'), 'HelloWorld.java')
+    f.createNewFile()
+    f << """\
+      package core;
+
+      import annotations.MyAnnotation;
+
+      @MyAnnotation
+      public class HelloWorld {
+        public String sayHello(String name) {
+          return "Hello, " + name + "!";
+        }
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+            .withGradleVersion(TEST_GRADLE_VERSION)
+            .withProjectDir(testProjectDir.root)
+            .withArguments(':core:jar', ':core:generatedResourcesJar')
+            .build()
+
+    then:
+    result.task(':core:processIsolatingAnnotationProcessors').outcome == TaskOutcome.SUCCESS
+    result.task(':core:compileJava').outcome == TaskOutcome.SUCCESS
+    result.task(':core:jar').outcome == TaskOutcome.SUCCESS
+    result.task(':core:generatedResourcesJar').outcome == TaskOutcome.SUCCESS
+    new File(testProjectDir.root, 'core/build/generated/resources/isolatingAnnotationProcessors/main/core/HelloWorld.txt').text == "core.HelloWorld"
+    new File(testProjectDir.root, 'core/build/classes/java/main/core/HelloWorld.class').exists()
+    !new File(testProjectDir.root, 'core/build/classes/java/main/core/HelloWorld.txt').exists()
+    new java.util.zip.ZipFile(new File(testProjectDir.root, 'core/build/libs/core.jar')).withCloseable { jar ->
+      jar.entries().findAll { it.name == 'core/HelloWorld.txt' }.size() == 1
+    }
+    new java.util.zip.ZipFile(new File(testProjectDir.root, 'core/build/libs/core-generated.jar')).withCloseable { jar ->
+      jar.entries().collect { it.name }.findAll { !it.startsWith('META-INF/') && !it.endsWith('/') } == ['core/HelloWorld.txt']
+    }
+  }
+
+  def "aptWatch generates sources and resources"() {
+    given:
+    settingsFile << """\
+      include 'processor'
+      include 'core'
+    """.stripIndent()
+    buildFile << """\
+      project('processor') {
+        apply plugin: 'java'
+      }
+      project('core') {
+        apply plugin: 'java'
+        apply plugin: 'net.ltgt.apt'
+
+        dependencies {
+          annotationProcessor project(':processor')
+        }
+      }
+    """.stripIndent()
+    def f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'java', 'processor'), 'GeneratingProcessor.java')
+    f << """\
+      package processor;
+
+      import java.io.IOException;
+      import java.io.UncheckedIOException;
+      import java.io.Writer;
+      import java.util.Collections;
+      import java.util.Set;
+      import javax.annotation.processing.AbstractProcessor;
+      import javax.annotation.processing.RoundEnvironment;
+      import javax.lang.model.SourceVersion;
+      import javax.lang.model.element.Element;
+      import javax.lang.model.element.TypeElement;
+      import javax.tools.StandardLocation;
+
+      public class GeneratingProcessor extends AbstractProcessor {
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+          return Collections.singleton("java.lang.Deprecated");
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+          return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+          for (Element element : roundEnv.getElementsAnnotatedWith(Deprecated.class)) {
+            String name = element.getSimpleName() + "Generated";
+            try {
+              try (Writer w = processingEnv.getFiler().createSourceFile("core." + name, element).openWriter()) {
+                w.write("package core; public class " + name + " {}");
+              }
+              try (Writer w = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "core", name + ".txt", element).openWriter()) {
+                w.write(name);
+              }
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+          return false;
+        }
+      }
+    """.stripIndent()
+    new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor') << """\
+      processor.GeneratingProcessor
+    """.stripIndent()
+    new File(testProjectDir.newFolder('core', 'src', 'main', 'java', 'core'), 'HelloWorld.java') << """\
+      package core;
+
+      @Deprecated
+      public class HelloWorld {}
+    """.stripIndent()
+    def generatedSources = new File(testProjectDir.root, 'core/build/generated/sources/annotationProcessor/java/main')
+    def staleSource = new File(generatedSources, 'core/StaleGenerated.java')
+    staleSource.parentFile.mkdirs()
+    staleSource.text = 'package core; class StaleGenerated {}'
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:aptWatch', '--once')
+        .build()
+
+    then:
+    result.task(':core:aptWatch').outcome == TaskOutcome.SUCCESS
+    new File(generatedSources, 'core/HelloWorldGenerated.java').text == 'package core; public class HelloWorldGenerated {}'
+    !staleSource.exists()
+    // Nothing is written outside the generated sources directories, generated resources are discarded
+    !new File(testProjectDir.root, 'core/build/classes').exists()
+    !new File(testProjectDir.root, 'core/build/generated/resources').exists()
+  }
+
+  def "fingerprints of annotation processing inputs"() {
+    given:
+    buildFile << """\
+      apply plugin: 'net.ltgt.apt'
+      apply plugin: 'java'
+
+      compileJava {
+        aptOptions.processorArgs = [ 'foo': project.findProperty('foo') ?: 'bar' ]
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments('aptFingerprints')
+        .build()
+    def fingerprints = new File(testProjectDir.root, 'build/reports/apt/fingerprints.txt')
+
+    then:
+    result.task(':aptFingerprints').outcome == TaskOutcome.SUCCESS
+    fingerprints.readLines().contains(':compileJava.aptOptions.processorArgs.foo=bar')
+    fingerprints.readLines().contains(':compileJava.aptOptions.annotationProcessing=true')
+
+    when:
+    def baseline = testProjectDir.newFile('baseline.txt')
+    baseline.text = fingerprints.text
+    result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments('aptFingerprints', '--baseline=baseline.txt', '-Pfoo=baz')
+        .build()
+
+    then:
+    result.output.contains(':compileJava.aptOptions.processorArgs.foo: bar -> baz')
+    !result.output.contains(':compileJava.aptOptions.annotationProcessing:')
+  }
+
+  def "fingerprints of processor path entries"() {
+    given:
+    buildFile << """\
+      apply plugin: 'net.ltgt.apt'
+      apply plugin: 'java'
+
+      dependencies {
+        annotationProcessor files('a/processor.jar', 'b/processor.jar')
+      }
+    """.stripIndent()
+    testProjectDir.newFolder('a')
+    testProjectDir.newFolder('b')
+    testProjectDir.newFile('a/processor.jar').text = 'a'
+    testProjectDir.newFile('b/processor.jar').text = 'b'
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments('aptFingerprints')
+        .build()
+    def fingerprints = new File(testProjectDir.root, 'build/reports/apt/fingerprints.txt')
+        .readLines()
+
+    then:
+    result.task(':aptFingerprints').outcome == TaskOutcome.SUCCESS
+    // sha256 of the file contents, in classpath order
+    fingerprints.contains(':compileJava.annotationProcessorPath.0=ca978112ca1bbdcafac231b39a23dc4da786eff8147c4e72b9807785afee48bb')
+    fingerprints.contains(':compileJava.annotationProcessorPath.1=3e23e8160039594a33894f6564e1b1348bbd7a0088d42c4acb73eeaed59c009d')
+  }
+
+  def "ignores processor path manifest changes"() {
+    given:
+    settingsFile << """\
+      include 'processor'
+      include 'core'
+    """.stripIndent()
+
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+      }
+      project('processor') {
+        jar {
+          manifest {
+            attributes('Build-Time': project.findProperty('buildTime') ?: 'unknown')
+          }
+        }
+      }
+      project('core') {
+        apply plugin: 'net.ltgt.apt'
+
+        aptNormalization {
+          ignoreManifest()
+        }
+
+        dependencies {
+          annotationProcessor project(':processor')
+        }
+      }
+    """.stripIndent()
+
+    def f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'java', 'processor'), 'Processor.java')
+    f.createNewFile()
+    f << """\
+      package processor;
+
+      public class Processor {
+      }
+    """.stripIndent()
+
+    f = new File(testProjectDir.newFolder('core', 'src', 'main', 'java', 'core'), 'HelloWorld.java')
+    f.createNewFile()
+    f << """\
+      package core;
+
+      public class HelloWorld {
+        public String sayHello(String name) {
+          return "Hello, " + name + "!";
+        }
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileJava', '-PbuildTime=1')
+        .build()
+
+    then:
+    result.task(':processor:jar').outcome == TaskOutcome.SUCCESS
+    result.task(':core:compileJava').outcome == TaskOutcome.SUCCESS
+
+    when:
+    result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileJava', '-PbuildTime=2')
+        .build()
+
+    then:
+    result.task(':processor:jar').outcome == TaskOutcome.SUCCESS
+    result.task(':core:compileJava').outcome == TaskOutcome.UP_TO_DATE
+  }
+
+  def "prune unused annotation processor path entries"() {
+    given:
+    settingsFile << """\
+      include 'unused'
+      include 'processor'
+      include 'core'
+    """.stripIndent()
+
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+      }
+      project('core') {
+        apply plugin: 'net.ltgt.apt'
+
+        dependencies {
+          annotationProcessor project(':processor')
+          annotationProcessor project(':unused')
+        }
+
+        analyzeAnnotationProcessorPath {
+          prune = true
+        }
+      }
+    """.stripIndent()
+
+    def f = new File(testProjectDir.newFolder('unused', 'src', 'main', 'java', 'unused'), 'Unused.java')
+    f.createNewFile()
+    f << """\
+      package unused;
+
+      public class Unused implements Runnable {
+        @Override public void run() {}
+      }
+    """.stripIndent()
+    f = new File(testProjectDir.newFolder('unused', 'src', 'main', 'resources', 'META-INF', 'services'), 'java.lang.Runnable')
+    f.createNewFile()
+    f << "unused.Unused\n"
+
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'java', 'processor'), 'MyProcessor.java')
+    f.createNewFile()
+    f << """\
+      package processor;
+
+      import javax.annotation.processing.AbstractProcessor;
+      import javax.annotation.processing.RoundEnvironment;
+      import javax.annotation.processing.SupportedAnnotationTypes;
+      import javax.lang.model.SourceVersion;
+      import javax.lang.model.element.TypeElement;
+      import java.util.Set;
+
+      @SupportedAnnotationTypes("*")
+      public class MyProcessor extends AbstractProcessor {
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+          return SourceVersion.latest();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+          try {
+            // looks up provider-configuration files in all entries, without loading providers
+            getClass().getClassLoader().getResources("META-INF/services/java.lang.Runnable");
+          } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+          }
+          return false;
+        }
+      }
+    """.stripIndent()
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+    f.createNewFile()
+    f << "processor.MyProcessor\n"
+
+    f = new File(testProjectDir.newFolder('core', 'src', 'main', 'java', 'core'), 'HelloWorld.java')
+    f.createNewFile()
+    f << """\
+      package core;
+
+      public class HelloWorld {
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileJava')
+        .build()
+
+    then:
+    result.task(':core:analyzeAnnotationProcessorPath').outcome == TaskOutcome.SUCCESS
+    result.task(':core:compileJava').outcome == TaskOutcome.SUCCESS
+    def report = new File(testProjectDir.root, 'core/build/reports/apt/main/annotationProcessorPath.txt').readLines()
+    report.any { it.startsWith('used ') && it.endsWith('processor.jar') }
+    report.any { it.startsWith('unused ') && it.endsWith('unused.jar') }
+
+    when:
+    new File(testProjectDir.root, 'unused/src/main/java/unused/Unused.java').text = """\
+      package unused;
+
+      public class Unused implements Runnable {
+        @Override public void run() {}
+        public void changed() {}
+      }
+    """.stripIndent()
+    result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileJava')
+        .build()
+
+    then:
+    result.task(':core:analyzeAnnotationProcessorPath').outcome == TaskOutcome.SUCCESS
+    result.task(':core:compileJava').outcome == TaskOutcome.UP_TO_DATE
+
+    when:
+    new File(testProjectDir.root, 'core/src/main/java/core/Other.java').text = """\
+      package core;
+
+      public class Other {
+      }
+    """.stripIndent()
+    result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileJava')
+        .build()
+
+    then:
+    // source changes don't run the annotation processors one more time
+    result.task(':core:analyzeAnnotationProcessorPath').outcome == TaskOutcome.UP_TO_DATE
+    result.task(':core:compileJava').outcome == TaskOutcome.SUCCESS
+  }
+
+  def "consolidate annotation processor path"() {
+    given:
+    settingsFile << """\
+      include 'processor1'
+      include 'processor2'
+      include 'core'
+    """.stripIndent()
+
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+      }
+      project('core') {
+        apply plugin: 'net.ltgt.apt'
+
+        dependencies {
+          annotationProcessor project(':processor1')
+          annotationProcessor project(':processor2')
+        }
+
+        consolidateAnnotationProcessorPath {
+          enabled = true
+        }
+      }
+    """.stripIndent()
+
+    ['processor1', 'processor2'].each { name ->
+      def f = new File(testProjectDir.newFolder(name, 'src', 'main', 'java', name), 'Generator.java')
+      f.createNewFile()
+      f << """\
+        package ${name};
+
+        import javax.annotation.processing.AbstractProcessor;
+        import javax.annotation.processing.RoundEnvironment;
+        import javax.annotation.processing.SupportedAnnotationTypes;
+        import javax.lang.model.SourceVersion;
+        import javax.lang.model.element.TypeElement;
+        import java.io.IOException;
+        import java.io.UncheckedIOException;
+        import java.io.Writer;
+        import java.util.Set;
+
+        @SupportedAnnotationTypes("*")
+        public class Generator extends AbstractProcessor {
+          @Override
+          public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latest();
+          }
+
+          @Override
+          public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (roundEnv.processingOver()) {
+              try (Writer w = processingEnv.getFiler().createSourceFile("core.Generated_${name}").openWriter()) {
+                w.write("package core; class Generated_${name} {}");
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+            return false;
+          }
+        }
+      """.stripIndent()
+      f = new File(testProjectDir.newFolder(name, 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+      f.createNewFile()
+      f << "${name}.Generator\n"
+      new File(testProjectDir.root, "${name}/src/main/resources/same.txt").text = 'same'
+      new File(testProjectDir.root, "${name}/src/main/resources/conflict.txt").text = name
+      // not an actual module descriptor, but enough to check it's dropped
+      new File(testProjectDir.root, "${name}/src/main/resources/module-info.class").text = name
+    }
+
+    def f = new File(testProjectDir.newFolder('core', 'src', 'main', 'java', 'core'), 'HelloWorld.java')
+    f.createNewFile()
+    f << """\
+      package core;
+
+      public class HelloWorld {
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileJava')
+        .build()
+
+    then:
+    result.task(':core:consolidateAnnotationProcessorPath').outcome == TaskOutcome.SUCCESS
+    result.task(':core:compileJava').outcome == TaskOutcome.SUCCESS
+    new File(testProjectDir.root, 'core/build/classes/java/main/core/Generated_processor1.class').isFile()
+    new File(testProjectDir.root, 'core/build/classes/java/main/core/Generated_processor2.class').isFile()
+    result.output.contains('conflict.txt (from processor1.jar and processor2.jar)')
+    !result.output.contains('same.txt')
+    def jar = new java.util.jar.JarFile(new File(testProjectDir.root, 'core/build/tmp/consolidateAnnotationProcessorPath/processorPath.jar'))
+    try {
+      assert jar.getInputStream(jar.getEntry('META-INF/services/javax.annotation.processing.Processor')).text ==
+          "processor1.Generator\nprocessor2.Generator\n"
+      assert jar.getInputStream(jar.getEntry('conflict.txt')).text == 'processor1'
+      assert jar.getEntry('module-info.class') == null
+    } finally {
+      jar.close()
+    }
+  }
+
+  def "consolidate annotation processor path with incremental processors"() {
+    given:
+    settingsFile << """\
+      include 'processor1'
+      include 'processor2'
+      include 'core'
+    """.stripIndent()
+
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+      }
+      project('core') {
+        apply plugin: 'net.ltgt.apt'
+
+        dependencies {
+          annotationProcessor project(':processor1')
+          annotationProcessor project(':processor2')
+        }
+
+        consolidateAnnotationProcessorPath {
+          enabled = true
+        }
+      }
+    """.stripIndent()
+
+    ['processor1', 'processor2'].each { name ->
+      def f = new File(testProjectDir.newFolder(name, 'src', 'main', 'java', name), 'Generator.java')
+      f.createNewFile()
+      f << """\
+        package ${name};
+
+        import javax.annotation.processing.AbstractProcessor;
+        import javax.annotation.processing.RoundEnvironment;
+        import javax.annotation.processing.SupportedAnnotationTypes;
+        import javax.lang.model.SourceVersion;
+        import javax.lang.model.element.TypeElement;
+        import java.io.IOException;
+        import java.io.UncheckedIOException;
+        import java.io.Writer;
+        import java.util.Set;
+
+        @SupportedAnnotationTypes("*")
+        public class Generator extends AbstractProcessor {
+          @Override
+          public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latest();
+          }
+
+          @Override
+          public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (roundEnv.processingOver()) {
+              try (Writer w = processingEnv.getFiler().createSourceFile("core.Generated_${name}").openWriter()) {
+                w.write("package core; class Generated_${name} {}");
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+            return false;
+          }
+        }
+      """.stripIndent()
+      f = new File(testProjectDir.newFolder(name, 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+      f.createNewFile()
+      f << "${name}.Generator\n"
+      f = new File(testProjectDir.newFolder(name, 'src', 'main', 'resources', 'META-INF', 'gradle'), 'incremental.annotation.processors')
+      f.createNewFile()
+      f << "${name}.Generator,aggregating\n"
+    }
+
+    def f = new File(testProjectDir.newFolder('core', 'src', 'main', 'java', 'core'), 'HelloWorld.java')
+    f.createNewFile()
+    f << """\
+      package core;
+
+      public class HelloWorld {
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileJava')
+        .build()
+
+    then:
+    result.task(':core:consolidateAnnotationProcessorPath').outcome == TaskOutcome.SUCCESS
+    result.task(':core:compileJava').outcome == TaskOutcome.SUCCESS
+    def jar = new java.util.jar.JarFile(new File(testProjectDir.root, 'core/build/tmp/consolidateAnnotationProcessorPath/processorPath.jar'))
+    try {
+      assert jar.getInputStream(jar.getEntry('META-INF/gradle/incremental.annotation.processors')).text ==
+          "processor1.Generator,aggregating\nprocessor2.Generator,aggregating\n"
+    } finally {
+      jar.close()
+    }
+  }
+
+  def "consolidate annotation processor path disabled keeps configured processor path"() {
+    given:
+    settingsFile << """\
+      include 'processor1'
+      include 'core'
+    """.stripIndent()
+
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+      }
+      project('core') {
+        configurations {
+          myProcessors
+        }
+        dependencies {
+          myProcessors project(':processor1')
+        }
+        tasks.withType(JavaCompile) {
+          options.annotationProcessorPath = configurations.myProcessors
+        }
+
+        apply plugin: 'net.ltgt.apt'
+      }
+    """.stripIndent()
+
+    ['processor1'].each { name ->
+      def f = new File(testProjectDir.newFolder(name, 'src', 'main', 'java', name), 'Generator.java')
+      f.createNewFile()
+      f << """\
+        package ${name};
+
+        import javax.annotation.processing.AbstractProcessor;
+        import javax.annotation.processing.RoundEnvironment;
+        import javax.annotation.processing.SupportedAnnotationTypes;
+        import javax.lang.model.SourceVersion;
+        import javax.lang.model.element.TypeElement;
+        import java.io.IOException;
+        import java.io.UncheckedIOException;
+        import java.io.Writer;
+        import java.util.Set;
+
+        @SupportedAnnotationTypes("*")
+        public class Generator extends AbstractProcessor {
+          @Override
+          public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latest();
+          }
+
+          @Override
+          public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (roundEnv.processingOver()) {
+              try (Writer w = processingEnv.getFiler().createSourceFile("core.Generated_${name}").openWriter()) {
+                w.write("package core; class Generated_${name} {}");
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+            return false;
+          }
+        }
+      """.stripIndent()
+      f = new File(testProjectDir.newFolder(name, 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+      f.createNewFile()
+      f << "${name}.Generator\n"
+    }
+
+    def f = new File(testProjectDir.newFolder('core', 'src', 'main', 'java', 'core'), 'HelloWorld.java')
+    f.createNewFile()
+    f << """\
+      package core;
+
+      public class HelloWorld {
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileJava')
+        .build()
+
+    then:
+    result.task(':core:consolidateAnnotationProcessorPath') == null
+    result.task(':core:compileJava').outcome == TaskOutcome.SUCCESS
+    new File(testProjectDir.root, 'core/build/classes/java/main/core/Generated_processor1.class').isFile()
+  }
+
+  def "validate processor options"() {
+    given:
+    settingsFile << """\
+      include 'processor'
+      include 'core'
+    """.stripIndent()
+
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+      }
+      project('core') {
+        apply plugin: 'net.ltgt.apt'
+
+        dependencies {
+          annotationProcessor project(':processor')
+        }
+
+        validateAnnotationProcessorOptions {
+          enabled = true
+        }
+        compileJava {
+          aptOptions.processorArgs = [
+            'my.option': 'value',
+            'my.optoin': 'typo',
+          ]
+        }
+      }
+    """.stripIndent()
+
+    def f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'java', 'processor'), 'MyProcessor.java')
+    f.createNewFile()
+    f << """\
+      package processor;
+
+      import javax.annotation.processing.AbstractProcessor;
+      import javax.annotation.processing.RoundEnvironment;
+      import javax.annotation.processing.SupportedAnnotationTypes;
+      import javax.annotation.processing.SupportedOptions;
+      import javax.lang.model.SourceVersion;
+      import javax.lang.model.element.TypeElement;
+      import java.util.Set;
+
+      @SupportedAnnotationTypes("*")
+      @SupportedOptions("my.option")
+      public class MyProcessor extends AbstractProcessor {
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+          return SourceVersion.latest();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+          return false;
+        }
+      }
+    """.stripIndent()
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+    f.createNewFile()
+    f << "processor.MyProcessor\n"
+
+    f = new File(testProjectDir.newFolder('core', 'src', 'main', 'java', 'core'), 'HelloWorld.java')
+    f.createNewFile()
+    f << """\
+      package core;
+
+      public class HelloWorld {
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileJava')
+        .buildAndFail()
+
+    then:
+    result.task(':core:validateAnnotationProcessorOptions').outcome == TaskOutcome.FAILED
+    result.task(':core:compileJava') == null
+    result.output.contains('Processor options not supported by any annotation processor: my.optoin')
+    result.output.contains('processor.MyProcessor: my.option')
+  }
+
+  def "process isolating annotation processors in parallel"() {
+    given:
+    settingsFile << """\
+      include 'annotations'
+      include 'processor'
+      include 'core'
+    """.stripIndent()
+
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+      }
+      project('core') {
+        apply plugin: 'net.ltgt.apt'
+
+        dependencies {
+          compileOnly project(':annotations')
+          annotationProcessor project(':processor')
+        }
+
+        compileJava {
+          aptOptions.parallelIsolatingProcessing = true
+        }
+        processIsolatingAnnotationProcessors {
+          partitions = 2
+        }
+      }
+    """.stripIndent()
+
+    def f = new File(testProjectDir.newFolder('annotations', 'src', 'main', 'java', 'annotations'), 'Generate.java')
+    f.createNewFile()
+    f << """\
+      package annotations;
+
+      public @interface Generate {
+      }
+    """.stripIndent()
+
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'java', 'processor'), 'GenerateProcessor.java')
+    f.createNewFile()
+    f << """\
+      package processor;
+
+      import javax.annotation.processing.AbstractProcessor;
+      import javax.annotation.processing.RoundEnvironment;
+      import javax.annotation.processing.SupportedAnnotationTypes;
+      import javax.lang.model.SourceVersion;
+      import javax.lang.model.element.Element;
+      import javax.lang.model.element.TypeElement;
+      import java.io.IOException;
+      import java.io.UncheckedIOException;
+      import java.io.Writer;
+      import java.util.Set;
+
+      @SupportedAnnotationTypes("annotations.Generate")
+      public class GenerateProcessor extends AbstractProcessor {
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+          return SourceVersion.latest();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+          for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+              String name = element.getSimpleName() + "_Generated";
+              try (Writer w = processingEnv.getFiler().createSourceFile("core." + name, element).openWriter()) {
+                w.write("package core; class " + name + " {}");
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+          }
+          return true;
+        }
+      }
+    """.stripIndent()
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+    f.createNewFile()
+    f << "processor.GenerateProcessor\n"
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'gradle'), 'incremental.annotation.processors')
+    f.createNewFile()
+    f << "processor.GenerateProcessor,isolating\n"
+
+    def coreDir = testProjectDir.newFolder('core', 'src', 'main', 'java', 'core')
+    ['Foo', 'Bar', 'Baz'].each { name ->
+      f = new File(coreDir, "${name}.java")
+      f.createNewFile()
+      f << """\
+        package core;
+
+        @annotations.Generate
+        class ${name} {
+        }
+      """.stripIndent()
+    }
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileJava', '--info')
+        .build()
+
+    then:
+    result.task(':core:processIsolatingAnnotationProcessors').outcome == TaskOutcome.SUCCESS
+    result.task(':core:compileJava').outcome == TaskOutcome.SUCCESS
+    ['Foo', 'Bar', 'Baz'].each { name ->
+      assert new File(testProjectDir.root, "core/build/generated/sources/isolatingAnnotationProcessors/main/core/${name}_Generated.java").isFile()
+      assert new File(testProjectDir.root, "core/build/classes/java/main/core/${name}_Generated.class").isFile()
+    }
+  }
+
+  def "process isolating annotation processors in parallel, with an aggregating processor"() {
+    given:
+    settingsFile << """\
+      include 'annotations'
+      include 'processor'
+      include 'core'
+    """.stripIndent()
+
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+      }
+      project('core') {
+        apply plugin: 'net.ltgt.apt'
+
+        dependencies {
+          compileOnly project(':annotations')
+          annotationProcessor project(':processor')
+        }
+
+        compileJava {
+          aptOptions.parallelIsolatingProcessing = true
+        }
+        processIsolatingAnnotationProcessors {
+          partitions = 2
+        }
+      }
+    """.stripIndent()
+
+    def f = new File(testProjectDir.newFolder('annotations', 'src', 'main', 'java', 'annotations'), 'Generate.java')
+    f.createNewFile()
+    f << """\
+      package annotations;
+
+      public @interface Generate {
+      }
+    """.stripIndent()
+
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'java', 'processor'), 'GenerateProcessor.java')
+    f.createNewFile()
+    f << """\
+      package processor;
+
+      import javax.annotation.processing.AbstractProcessor;
+      import javax.annotation.processing.RoundEnvironment;
+      import javax.annotation.processing.SupportedAnnotationTypes;
+      import javax.lang.model.SourceVersion;
+      import javax.lang.model.element.Element;
+      import javax.lang.model.element.TypeElement;
+      import java.io.IOException;
+      import java.io.UncheckedIOException;
+      import java.io.Writer;
+      import java.util.Set;
+
+      @SupportedAnnotationTypes("annotations.Generate")
+      public class GenerateProcessor extends AbstractProcessor {
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+          return SourceVersion.latest();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+          for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+              String name = element.getSimpleName() + "_Generated";
+              try (Writer w = processingEnv.getFiler().createSourceFile("core." + name, element).openWriter()) {
+                w.write("package core; class " + name + " {}");
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+          }
+          return true;
+        }
+      }
+    """.stripIndent()
+    f = new File(testProjectDir.root, 'processor/src/main/java/processor/RegistryProcessor.java')
+    f.createNewFile()
+    f << """\
+      package processor;
+
+      import javax.annotation.processing.AbstractProcessor;
+      import javax.annotation.processing.RoundEnvironment;
+      import javax.annotation.processing.SupportedAnnotationTypes;
+      import javax.lang.model.SourceVersion;
+      import javax.lang.model.element.TypeElement;
+      import java.io.IOException;
+      import java.io.UncheckedIOException;
+      import java.io.Writer;
+      import java.util.Set;
+
+      @SupportedAnnotationTypes("*")
+      public class RegistryProcessor extends AbstractProcessor {
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+          return SourceVersion.latest();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+          if (roundEnv.processingOver()) {
+            try (Writer w = processingEnv.getFiler().createSourceFile("core.Registry").openWriter()) {
+              // the isolating processor has to see this generated source
+              w.write("package core; @annotations.Generate class Registry {}");
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+          return false;
+        }
+      }
+    """.stripIndent()
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+    f.createNewFile()
+    f << "processor.GenerateProcessor\nprocessor.RegistryProcessor\n"
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'gradle'), 'incremental.annotation.processors')
+    f.createNewFile()
+    f << "processor.GenerateProcessor,isolating\nprocessor.RegistryProcessor,aggregating\n"
+
+    def coreDir = testProjectDir.newFolder('core', 'src', 'main', 'java', 'core')
+    ['Foo', 'Bar', 'Baz'].each { name ->
+      f = new File(coreDir, "${name}.java")
+      f.createNewFile()
+      f << """\
+        package core;
+
+        @annotations.Generate
+        class ${name} {
+        }
+      """.stripIndent()
+    }
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileJava', '--info')
+        .build()
+
+    then:
+    result.task(':core:processIsolatingAnnotationProcessors').outcome == TaskOutcome.SUCCESS
+    result.task(':core:compileJava').outcome == TaskOutcome.SUCCESS
+    // all processors ran in the compile task
+    !new File(testProjectDir.root, "core/build/generated/sources/isolatingAnnotationProcessors/main/core/Foo_Generated.java").exists()
+    ['Foo', 'Bar', 'Baz', 'Registry'].each { name ->
+      assert new File(testProjectDir.root, "core/build/classes/java/main/core/${name}_Generated.class").isFile()
+    }
+  }
+
   def "simple non-groovy project"() {
     given:
     buildFile << """\
@@ -597,6 +1854,122 @@ class AptPluginIntegrationSpec extends Specification {
     new File(testProjectDir.root, 'core/build/classes/groovy/main/annotated-elements').text.trim() == "core.HelloWorld"
   }
 
+  def "groovy project with mixed sources and processing includes"() {
+    given:
+    settingsFile << """\
+      include 'processor'
+      include 'core'
+    """.stripIndent()
+
+    buildFile << """\
+      project('processor') {
+        apply plugin: 'java'
+      }
+      project('core') {
+        apply plugin: 'groovy'
+        apply plugin: 'net.ltgt.apt'
+
+        dependencies {
+          compile localGroovy()
+          annotationProcessor project(':processor')
+        }
+
+        compileGroovy {
+          aptOptions.processingIncludes = ['**/*.java']
+        }
+      }
+    """.stripIndent()
+
+    def f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'java', 'processor'), 'GeneratingProcessor.java')
+    f << """\
+      package processor;
+
+      import java.io.IOException;
+      import java.io.UncheckedIOException;
+      import java.io.Writer;
+      import java.util.Collections;
+      import java.util.Set;
+      import javax.annotation.processing.AbstractProcessor;
+      import javax.annotation.processing.RoundEnvironment;
+      import javax.lang.model.SourceVersion;
+      import javax.lang.model.element.Element;
+      import javax.lang.model.element.TypeElement;
+      import javax.tools.Diagnostic;
+
+      public class GeneratingProcessor extends AbstractProcessor {
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+          return Collections.singleton("java.lang.Deprecated");
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+          return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+          for (Element element : roundEnv.getElementsAnnotatedWith(Deprecated.class)) {
+            String name = element.getSimpleName() + "Generated";
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Generating " + name, element);
+            try (Writer w = processingEnv.getFiler().createSourceFile("core." + name, element).openWriter()) {
+              w.write("package core; public class " + name + " {}");
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+          return false;
+        }
+      }
+    """.stripIndent()
+    f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+    f << """\
+      processor.GeneratingProcessor
+    """.stripIndent()
+
+    def srcDir = testProjectDir.newFolder('core', 'src', 'main', 'groovy', 'core')
+    new File(srcDir, 'JavaHello.java') << """\
+      package core;
+
+      @Deprecated
+      public class JavaHello {
+        public GroovyHello groovy() {
+          return new GroovyHello();
+        }
+      }
+    """.stripIndent()
+    new File(srcDir, 'GroovyHello.groovy') << """\
+      package core
+
+      @Deprecated
+      class GroovyHello {
+        JavaHelloGenerated generated() {
+          new JavaHelloGenerated()
+        }
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':core:compileGroovy')
+        .build()
+
+    then:
+    result.task(':core:processGroovyAnnotations').outcome == TaskOutcome.SUCCESS
+    result.task(':core:compileGroovy').outcome == TaskOutcome.SUCCESS
+    // Diagnostics from processors are reported
+    result.output.contains('Generating JavaHelloGenerated')
+    // The Groovy class can't be resolved, which is reported as a warning and doesn't fail the build
+    result.output.contains('GroovyHello')
+    // Only Java sources are processed
+    !result.output.contains('Generating GroovyHelloGenerated')
+    new File(testProjectDir.root, 'core/build/generated/sources/groovyAnnotations/main/core/JavaHelloGenerated.java').exists()
+    new File(testProjectDir.root, 'core/build/classes/groovy/main/core/JavaHelloGenerated.class').exists()
+    new File(testProjectDir.root, 'core/build/classes/groovy/main/core/GroovyHello.class').exists()
+  }
+
   @Requires({ GradleVersion.version(TEST_GRADLE_VERSION) >= GradleVersion.version("3.5") })
   def "is build-cache friendly"() {
     given:
@@ -223,4 +223,243 @@ class AptPluginSpec extends PluginProjectSpec {
       task.options.allCompilerArgs.empty
     }
   }
+
+  def 'lazy processor args'() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'java'
+    def generateSchema = project.tasks.create('generateSchema') {
+      outputs.file('build/schema.json')
+    }
+    def resolved = false
+    project.tasks.compileJava.aptOptions.processorArgs = [
+        'eager': 'value',
+        'provider': project.provider { resolved = true; 'lazy' },
+        'closure': { 'closure' },
+        'schema': generateSchema.outputs.files,
+    ]
+    project.evaluate()
+
+    then:
+    !resolved
+    with(project.tasks.compileJava) { JavaCompile task ->
+      task.taskDependencies.getDependencies(task).contains(generateSchema)
+      task.options.allCompilerArgs == [
+          '-Aeager=value',
+          '-Aprovider=lazy',
+          '-Aclosure=closure',
+          "-Aschema=${project.file('build/schema.json').absolutePath}" as String,
+      ]
+      // absolute paths aren't part of the task inputs
+      task.aptOptions.effectiveProcessorArgs['schema'] == '<files build/schema.json>'
+    }
+    resolved
+  }
+
+  def 'processor scoped args'() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'java'
+    project.tasks.compileJava.aptOptions {
+      processors = ['foo.Processor']
+      processorArgs = ['global': 'value']
+      processor('foo.Processor') {
+        args 'foo.option': 'foo'
+      }
+      processor('bar.Processor').args['bar.option'] = 'bar'
+    }
+    project.evaluate()
+
+    then:
+    with(project.tasks.compileJava) { JavaCompile task ->
+      task.aptOptions.effectiveProcessorArgs == ['global': 'value', 'foo.option': 'foo']
+      task.options.allCompilerArgs == [
+          '-processor', 'foo.Processor',
+          '-Aglobal=value',
+          '-Afoo.option=foo',
+      ]
+    }
+  }
+
+  def 'processor scoped args do not resolve the processor path'() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'java'
+    def generateSchema = project.tasks.create('generateSchema') {
+      outputs.file('build/schema.json')
+    }
+    // not built yet: this would fail if the jar were opened
+    project.file('build').mkdirs()
+    project.file('build/processor.jar').text = 'not a jar'
+    project.dependencies {
+      annotationProcessor project.files('build/processor.jar')
+    }
+    project.tasks.compileJava.aptOptions {
+      processor('foo.Processor') {
+        args 'schema': generateSchema.outputs.files
+      }
+    }
+    project.evaluate()
+
+    then:
+    with(project.tasks.compileJava) { JavaCompile task ->
+      task.taskDependencies.getDependencies(task).contains(generateSchema)
+      // processors aren't listed, so options of all processors are inputs
+      task.aptOptions.effectiveProcessorArgs == ['schema': '<files build/schema.json>']
+    }
+  }
+
+  def 'aptWatch task'() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'java'
+    def generateProcessor = project.tasks.create('generateProcessor') {
+      outputs.file('build/processor.jar')
+    }
+    project.dependencies {
+      annotationProcessor project.files('build/processor.jar') { builtBy generateProcessor }
+    }
+    project.evaluate()
+
+    then:
+    with(project.tasks.aptWatch) { AptWatch task ->
+      task.taskDependencies.getDependencies(task).contains(generateProcessor)
+    }
+  }
+
+  def 'groovy processing includes'() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'groovy'
+    project.tasks.compileGroovy.aptOptions.processors = ['foo.Processor']
+    project.tasks.compileGroovy.aptOptions.processingIncludes = ['**/*.java']
+    project.evaluate()
+
+    then:
+    with(project.tasks.compileGroovy) { GroovyCompile task ->
+      task.options.allCompilerArgs == ['-proc:none']
+    }
+    with(project.tasks.compileTestGroovy) { GroovyCompile task ->
+      task.options.allCompilerArgs.empty
+    }
+    with(project.tasks.processGroovyAnnotations) { ProcessGroovyAnnotations task ->
+      task.processors == ['foo.Processor']
+      task.aptOptions.is(project.tasks.compileGroovy.aptOptions)
+    }
+  }
+
+  def 'processor args in argument file'() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'java'
+    project.tasks.compileJava.aptOptions {
+      annotationProcessing = false
+      processors = ['foo.Processor', 'bar.Processor']
+      processorArgs = ['foo': 'with "quotes" and spaces', 'bar': 'C:\\baz']
+      useArgumentFile = true
+    }
+    project.tasks.compileJava.options.fork = true
+    project.tasks.compileJava.options.forkOptions.executable = 'javac'
+    project.evaluate()
+
+    then:
+    with(project.tasks.compileJava) { JavaCompile task ->
+      def argumentFile = new File(task.temporaryDir, 'apt-arguments.txt')
+      task.options.allCompilerArgs == ['-proc:none', "@${argumentFile.absolutePath}" as String]
+      argumentFile.readLines() == [
+          '"-processor"',
+          '"foo.Processor,bar.Processor"',
+          '"-Afoo=with \\"quotes\\" and spaces"',
+          '"-Abar=C:\\\\baz"',
+      ]
+    }
+
+    when: 'arguments are computed again'
+    def argumentFile = new File(project.tasks.compileJava.temporaryDir, 'apt-arguments.txt')
+    argumentFile.lastModified = 1000
+    project.tasks.compileJava.options.allCompilerArgs
+
+    then: 'the file is left untouched'
+    argumentFile.lastModified() == 1000
+
+    when: 'arguments change'
+    project.tasks.compileJava.aptOptions.processorArgs.foo = 'changed'
+    project.tasks.compileJava.options.allCompilerArgs
+
+    then: 'the file is rewritten'
+    argumentFile.lastModified() != 1000
+    argumentFile.readLines().contains('"-Afoo=changed"')
+  }
+
+  def 'processor args inline when compiling in process'() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'java'
+    project.tasks.compileJava.aptOptions {
+      processors = ['foo.Processor']
+      useArgumentFile = true
+    }
+    project.evaluate()
+
+    then:
+    with(project.tasks.compileJava) { JavaCompile task ->
+      task.options.allCompilerArgs == ['-processor', 'foo.Processor']
+      !new File(task.temporaryDir, 'apt-arguments.txt').exists()
+    }
+  }
+
+  def 'verify determinism task inputs follow the compile task options'() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'java'
+    project.tasks.compileJava {
+      options.compilerArgs = ['-Xlint:all']
+      options.encoding = 'UTF-8'
+      aptOptions.processors = ['foo.Processor']
+      aptOptions.processorArgs = ['foo': 'bar']
+    }
+    project.evaluate()
+
+    then:
+    with(project.tasks.verifyAnnotationProcessorDeterminism) { VerifyAnnotationProcessorDeterminism task ->
+      task.compilerArgs == ['-Xlint:all']
+      task.encoding == 'UTF-8'
+      task.processors == ['foo.Processor']
+      task.processorArgs == ['foo': 'bar']
+    }
+  }
+
+  def 'validate options task uses the compile task annotation processor path'() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'java'
+    project.evaluate()
+    project.tasks.compileJava.options.annotationProcessorPath = project.files('custom.jar')
+
+    then:
+    with(project.tasks.validateAnnotationProcessorOptions) { ValidateAnnotationProcessorOptions task ->
+      task.annotationProcessorPath.files == [project.file('custom.jar')] as Set
+    }
+  }
+
+  def 'isolating processors task inputs follow the compile task options'() {
+    when:
+    project.apply plugin: pluginName
+    project.apply plugin: 'java'
+    project.tasks.compileJava {
+      options.compilerArgs = ['-Xlint:all']
+      options.encoding = 'UTF-8'
+      aptOptions.parallelIsolatingProcessing = true
+      aptOptions.processorArgs = ['foo': 'bar']
+    }
+    project.evaluate()
+
+    then:
+    with(project.tasks.processIsolatingAnnotationProcessors) { ProcessIsolatingAnnotationProcessors task ->
+      task.compilerArgs == ['-Xlint:all']
+      task.encoding == 'UTF-8'
+      task.processorArgs == ['foo': 'bar']
+      task.aptOptions.is(project.tasks.compileJava.aptOptions)
+    }
+  }
 }
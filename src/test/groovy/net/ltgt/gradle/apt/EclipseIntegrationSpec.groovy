@@ -236,6 +236,419 @@ class EclipseIntegrationSpec extends Specification {
     ].collect { it.replace('/', File.separator) }.toSet())
   }
 
+  def "eclipseFactorypath task with processorsOnly"() {
+    given:
+    settingsFile << """\
+      include 'processor'
+      include 'lib'
+      include 'other'
+    """.stripIndent()
+    buildFile << """\
+      allprojects {
+        apply plugin: 'java'
+      }
+      project(':processor') {
+        dependencies {
+          implementation project(':lib')
+        }
+      }
+      dependencies {
+        annotationProcessor project(':processor')
+        annotationProcessor project(':other')
+      }
+      eclipse {
+        factorypath {
+          processorsOnly = true
+        }
+      }
+    """.stripIndent()
+    def f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+    f.createNewFile()
+    f << "processor.MyProcessor\n"
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':eclipseFactorypath')
+        .build()
+
+    then:
+    result.task(':eclipseFactorypath').outcome == TaskOutcome.SUCCESS
+    def factorypath = new File(testProjectDir.root, '.factorypath')
+    factorypath.exists()
+    def entries = new XmlSlurper().parse(factorypath).factorypathentry
+    entries.size() == 2
+    (entries.@id as Set).equals([
+        "${testProjectDir.root}/processor/build/libs/processor.jar",
+        "${testProjectDir.root}/lib/build/libs/lib.jar",
+    ].collect { it.replace('/', File.separator) }.toSet())
+  }
+
+  def "eclipseFactorypath task with entry rules"() {
+    given:
+    settingsFile << """\
+      include 'processor'
+      include 'lib'
+      include 'other'
+      include 'gradleOnly'
+    """.stripIndent()
+    buildFile << """\
+      allprojects {
+        apply plugin: 'java'
+      }
+      dependencies {
+        annotationProcessor project(':processor')
+        annotationProcessor project(':lib')
+        annotationProcessor project(':other')
+        annotationProcessor project(':gradleOnly')
+      }
+      eclipse {
+        factorypath {
+          entry('processor.MyProcessor') {
+            runInBatchMode = true
+          }
+          entry('other*.jar') {
+            enabled = false
+          }
+          entry('gradleOnly.jar') {
+            excluded = true
+          }
+        }
+      }
+    """.stripIndent()
+    def f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+    f.createNewFile()
+    f << "processor.MyProcessor\n"
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':eclipseFactorypath')
+        .build()
+
+    then:
+    result.task(':eclipseFactorypath').outcome == TaskOutcome.SUCCESS
+    def factorypath = new File(testProjectDir.root, '.factorypath')
+    def entries = new XmlSlurper().parse(factorypath).factorypathentry
+    entries.collect { [it.@id.text(), it.@enabled.text(), it.@runInBatchMode.text()] } == [
+        ["${testProjectDir.root}/processor/build/libs/processor.jar", 'true', 'true'],
+        ["${testProjectDir.root}/lib/build/libs/lib.jar", 'true', 'false'],
+        ["${testProjectDir.root}/other/build/libs/other.jar", 'false', 'false'],
+    ].collect { [it[0].replace('/', File.separator), it[1], it[2]] }
+
+    // Test that settings of existing entries are kept
+    when:
+    factorypath.text = factorypath.text.replace('lib.jar" enabled="true" runInBatchMode="false"', 'lib.jar" enabled="true" runInBatchMode="true"')
+    result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':eclipseFactorypath')
+        .build()
+
+    then:
+    result.task(':eclipseFactorypath').outcome == TaskOutcome.SUCCESS
+    def entries2 = new XmlSlurper().parse(factorypath).factorypathentry
+    entries2.collect { [it.@id.text(), it.@enabled.text(), it.@runInBatchMode.text()] } == [
+        ["${testProjectDir.root}/processor/build/libs/processor.jar", 'true', 'true'],
+        ["${testProjectDir.root}/lib/build/libs/lib.jar", 'true', 'true'],
+        ["${testProjectDir.root}/other/build/libs/other.jar", 'false', 'false'],
+    ].collect { [it[0].replace('/', File.separator), it[1], it[2]] }
+  }
+
+  def "eclipseFactorypath task keeps other entries"() {
+    given:
+    buildFile << """\
+      apply plugin: 'java'
+      eclipse {
+        factorypath {
+          file.whenMerged {
+            entries << file('some/processor.jar')
+          }
+        }
+      }
+    """.stripIndent()
+    def factorypath = testProjectDir.newFile('.factorypath')
+    factorypath.text = """\
+      <?xml version="1.0" encoding="UTF-8"?>
+      <factorypath>
+      \t<factorypathentry kind="PLUGIN" id="org.eclipse.jst.ws.annotations.core" enabled="true" runInBatchMode="false"/>
+      </factorypath>
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':eclipseFactorypath')
+        .build()
+
+    then:
+    result.task(':eclipseFactorypath').outcome == TaskOutcome.SUCCESS
+    def entries = new XmlSlurper().parse(factorypath).factorypathentry
+    entries.collect { [it.@kind.text(), it.@id.text()] } == [
+        ['PLUGIN', 'org.eclipse.jst.ws.annotations.core'],
+        ['EXTJAR', "${testProjectDir.root}/some/processor.jar".replace('/', File.separator)],
+    ]
+  }
+
+  def "eclipseFactorypath task keeps disabled entries"() {
+    given:
+    settingsFile << """\
+      include 'processor'
+    """.stripIndent()
+    buildFile << """\
+      allprojects {
+        apply plugin: 'java'
+      }
+      dependencies {
+        annotationProcessor project(':processor')
+      }
+    """.stripIndent()
+    def processorJar = new File(testProjectDir.root, 'processor/build/libs/processor.jar')
+    def otherJar = new File(testProjectDir.root, 'some/processor.jar')
+    def factorypath = testProjectDir.newFile('.factorypath')
+    factorypath.text = """\
+      <?xml version="1.0" encoding="UTF-8"?>
+      <factorypath>
+      \t<factorypathentry kind="EXTJAR" id="${processorJar}" enabled="false" runInBatchMode="false"/>
+      \t<factorypathentry kind="EXTJAR" id="${otherJar}" enabled="false" runInBatchMode="true"/>
+      </factorypath>
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':eclipseFactorypath')
+        .build()
+
+    then:
+    result.task(':eclipseFactorypath').outcome == TaskOutcome.SUCCESS
+    def entries = new XmlSlurper().parse(factorypath).factorypathentry
+    entries.collect { [it.@id.text(), it.@enabled.text(), it.@runInBatchMode.text()] } == [
+        [processorJar.path, 'false', 'false'],
+        [otherJar.path, 'false', 'true'],
+    ]
+  }
+
+  def "eclipseFactorypath and eclipseJdtApt tasks apply withXml and withProperties hooks"() {
+    given:
+    buildFile << """\
+      apply plugin: 'java'
+      eclipse {
+        factorypath {
+          file.withXml {
+            it.asNode().appendNode('factorypathentry', [kind: 'VARJAR', id: 'M2_REPO/some/other.jar', enabled: 'true', runInBatchMode: 'false'])
+          }
+        }
+        jdt {
+          apt {
+            file.withProperties {
+              it.setProperty('org.eclipse.jdt.apt.some.key', 'some value')
+            }
+          }
+        }
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':eclipseFactorypath', ':eclipseJdtApt')
+        .build()
+
+    then:
+    result.task(':eclipseFactorypath').outcome == TaskOutcome.SUCCESS
+    result.task(':eclipseJdtApt').outcome == TaskOutcome.SUCCESS
+    def factorypath = new File(testProjectDir.root, '.factorypath')
+    new XmlSlurper().parse(factorypath).factorypathentry.collect { [it.@kind.text(), it.@id.text()] } == [
+        ['VARJAR', 'M2_REPO/some/other.jar'],
+    ]
+    factorypath.readLines().any { it.startsWith('\t<factorypathentry ') }
+    loadProperties('.settings/org.eclipse.jdt.apt.core.prefs').getProperty('org.eclipse.jdt.apt.some.key') == 'some value'
+  }
+
+  def "eclipseFactorypath tasks with shared resolution"() {
+    given:
+    def mavenRepo = new GradleDependencyGenerator(
+        new DependencyGraphBuilder()
+            .addModule('processor:processor:1.0')
+            .build(),
+        testProjectDir.newFolder('repo').path)
+      .generateTestMavenRepo()
+
+    settingsFile << """\
+      include 'a'
+      include 'b'
+    """.stripIndent()
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+        apply plugin: 'net.ltgt.apt-eclipse'
+        repositories {
+          maven { url file(\$/${mavenRepo}/\$) }
+        }
+        dependencies {
+          annotationProcessor 'processor:processor:1.0'
+        }
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':a:eclipseFactorypath', ':b:eclipseFactorypath', '--info', '-Pnet.ltgt.apt.eclipse.shareFactorypathResolution=true')
+        .build()
+
+    then:
+    result.task(':a:eclipseFactorypath').outcome == TaskOutcome.SUCCESS
+    result.task(':b:eclipseFactorypath').outcome == TaskOutcome.SUCCESS
+    result.output.contains("Reusing shared resolution result for annotationProcessor of project ':b'")
+    ['a', 'b'].each { name ->
+      def entries = new XmlSlurper().parse(new File(testProjectDir.root, "${name}/.factorypath")).factorypathentry
+      assert (entries.@id as List) == ["$mavenRepo/processor/processor/1.0/processor-1.0.jar".replace('/', File.separator)]
+    }
+  }
+
+  def "eclipseFactorypath task with all source sets"() {
+    given:
+    settingsFile << """\
+      include 'mainProcessor'
+      include 'testProcessor'
+      include 'integTestProcessor'
+    """.stripIndent()
+    buildFile << """\
+      allprojects {
+        apply plugin: 'java'
+      }
+      sourceSets {
+        integTest
+      }
+      dependencies {
+        annotationProcessor project(':mainProcessor')
+        testAnnotationProcessor project(':mainProcessor')
+        testAnnotationProcessor project(':testProcessor')
+        integTestAnnotationProcessor project(':integTestProcessor')
+      }
+      eclipse {
+        factorypath {
+          disabledConfigurations += [configurations.testAnnotationProcessor]
+        }
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':eclipseFactorypath')
+        .build()
+
+    then:
+    result.task(':eclipseFactorypath').outcome == TaskOutcome.SUCCESS
+    result.task(':integTestProcessor:jar').outcome == TaskOutcome.SUCCESS
+    def entries = new XmlSlurper().parse(new File(testProjectDir.root, '.factorypath')).factorypathentry
+    entries.collect { [it.@id.text(), it.@enabled.text()] } == [
+        ["${testProjectDir.root}/mainProcessor/build/libs/mainProcessor.jar", 'true'],
+        ["${testProjectDir.root}/testProcessor/build/libs/testProcessor.jar", 'false'],
+        ["${testProjectDir.root}/integTestProcessor/build/libs/integTestProcessor.jar", 'false'],
+    ].collect { [it[0].replace('/', File.separator), it[1]] }
+
+    when:
+    // Enable the entry, as done from the Eclipse UI
+    def factorypath = new File(testProjectDir.root, '.factorypath')
+    factorypath.text = factorypath.text.replace('enabled="false"', 'enabled="true"')
+    result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':eclipseFactorypath')
+        .build()
+
+    then:
+    result.task(':eclipseFactorypath').outcome == TaskOutcome.SUCCESS
+    new XmlSlurper().parse(factorypath).factorypathentry.every { it.@enabled.text() == 'true' }
+  }
+
+  def "eclipseJdtApt task with Gradle generated sources directories"() {
+    given:
+    buildFile << """\
+      apply plugin: 'java'
+      eclipse {
+        jdt {
+          apt {
+            useGradleGeneratedSourcesDirs = true
+          }
+        }
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':eclipseJdtApt')
+        .build()
+
+    then:
+    result.task(':eclipseJdtApt').outcome == TaskOutcome.SUCCESS
+    def aptSettings = loadProperties('.settings/org.eclipse.jdt.apt.core.prefs')
+    aptSettings.getProperty('org.eclipse.jdt.apt.genSrcDir') == 'build/generated/sources/annotationProcessor/java/main'.replace('/', File.separator)
+    aptSettings.getProperty('org.eclipse.jdt.apt.genTestSrcDir') == 'build/generated/sources/annotationProcessor/java/test'.replace('/', File.separator)
+    result.output.contains('files generated by Eclipse will be deleted by Gradle')
+  }
+
+  def "eclipseJdtApt task with heavy processors"() {
+    given:
+    settingsFile << """\
+      include 'processor'
+    """.stripIndent()
+    buildFile << """\
+      allprojects {
+        apply plugin: 'java'
+      }
+      dependencies {
+        annotationProcessor project(':processor')
+      }
+      eclipse {
+        jdt {
+          apt {
+            heavyProcessors = [ project.findProperty('heavyProcessor') ?: 'processor.MyProcessor' ]
+          }
+        }
+      }
+    """.stripIndent()
+    def f = new File(testProjectDir.newFolder('processor', 'src', 'main', 'resources', 'META-INF', 'services'), 'javax.annotation.processing.Processor')
+    f.createNewFile()
+    f << "processor.MyProcessor\n"
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':eclipseJdtApt')
+        .build()
+
+    then:
+    result.task(':eclipseJdtApt').outcome == TaskOutcome.SUCCESS
+    result.task(':processor:jar').outcome == TaskOutcome.SUCCESS
+    loadProperties('.settings/org.eclipse.jdt.apt.core.prefs').getProperty('org.eclipse.jdt.apt.reconcileEnabled') == 'false'
+
+    when:
+    result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments(':eclipseJdtApt', '-PheavyProcessor=other.Processor')
+        .build()
+
+    then:
+    result.task(':eclipseJdtApt').outcome == TaskOutcome.SUCCESS
+    loadProperties('.settings/org.eclipse.jdt.apt.core.prefs').getProperty('org.eclipse.jdt.apt.reconcileEnabled') == 'true'
+  }
+
   def "eclipse task custom config"() {
     given:
     buildFile << """\
@@ -71,7 +71,7 @@ class IdeaIntegrationSpec extends Specification {
 
   void hasAnnotationProcessingConfigured(boolean expected) {
     with (new XmlSlurper().parse(new File(testProjectDir.root, "${moduleName}.ipr")).component.find { it.@name == 'CompilerConfiguration' }
-              .annotationProcessing.profile) {
+              .annotationProcessing.profile.find { it.@name == 'Default' }) {
       assert expected == (it.size() == 1)
       assert expected == (it.@default == true)
       assert expected == (it.@enabled == true)
@@ -157,6 +157,188 @@ class IdeaIntegrationSpec extends Specification {
     // TODO: check IML for content roots and dependencies
   }
 
+  def "idea task with processor path profiles"() {
+    setup:
+    def mavenRepo = new GradleDependencyGenerator(
+        new DependencyGraphBuilder()
+            .addModule('annotations:compile:1.0')
+            .addModule(new ModuleBuilder('processor:compile:1.0')
+                .addDependency('annotations:compile:1.0')
+                .build())
+            .addModule('processor:other:1.0')
+            .build(),
+        testProjectDir.newFolder('repo').path)
+        .generateTestMavenRepo()
+
+    settingsFile << """\
+      include 'a', 'b', 'c', 'd'
+    """.stripIndent()
+    buildFile << """\
+      subprojects {
+        apply plugin: 'java'
+        apply plugin: 'net.ltgt.apt-idea'
+        repositories {
+          maven { url file(\$/${mavenRepo}/\$) }
+        }
+      }
+      project(':a') {
+        dependencies {
+          annotationProcessor 'processor:compile:1.0'
+        }
+      }
+      project(':b') {
+        dependencies {
+          annotationProcessor 'processor:compile:1.0'
+        }
+      }
+      project(':c') {
+        dependencies {
+          annotationProcessor     'processor:compile:1.0'
+          testAnnotationProcessor 'processor:other:1.0'
+        }
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments('idea')
+        .build()
+
+    then:
+    result.task(':ideaProject').outcome == TaskOutcome.SUCCESS
+    hasAnnotationProcessingConfigured(true)
+    def profiles = new XmlSlurper().parse(new File(testProjectDir.root, "${moduleName}.ipr"))
+        .component.find { it.@name == 'CompilerConfiguration' }
+        .annotationProcessing.profile.findAll { it.@name != 'Default' }
+        .list()
+    profiles.size() == 3
+    with(profiles.find { it.module*.@name*.text() == ['a', 'b'] }) {
+      it.@enabled == true
+      it.processorPath.@useClasspath == false
+      it.processorPath.entry*.@name*.text().collect { it.substring(it.lastIndexOf('/') + 1) } ==
+          ['processor-1.0.jar', 'annotations-1.0.jar']
+    }
+    with(profiles.find { it.module*.@name*.text() == ['c'] }) {
+      it.@enabled == true
+      it.processorPath.entry*.@name*.text().collect { it.substring(it.lastIndexOf('/') + 1) } ==
+          ['processor-1.0.jar', 'annotations-1.0.jar', 'other-1.0.jar']
+    }
+    with(profiles.find { it.module*.@name*.text() == ['d'] }) {
+      it.@enabled == false
+      it.processorPath.entry.size() == 0
+    }
+  }
+
+  def "idea task, delegatedBuild = true"() {
+    setup:
+    buildFile << """\
+      apply plugin: 'java'
+      idea {
+        project {
+          delegatedBuild = true
+        }
+      }
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments('idea')
+        .build()
+
+    then:
+    result.task(':ideaProject').outcome == TaskOutcome.SUCCESS
+    hasAnnotationProcessingDisabled()
+  }
+
+  def "idea task, delegated build detected from IDEA settings"() {
+    setup:
+    buildFile << """\
+      apply plugin: 'java'
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments('idea')
+        .build()
+
+    then:
+    result.task(':ideaProject').outcome == TaskOutcome.SUCCESS
+    hasAnnotationProcessingConfigured(true)
+
+    when:
+    // Link the file-based project to Gradle, as IntelliJ IDEA would do
+    def ipr = new File(testProjectDir.root, "${moduleName}.ipr")
+    ipr.text = ipr.text.replaceFirst('</project>', """\
+      <component name="GradleSettings">
+        <option name="linkedExternalProjectsSettings">
+          <GradleProjectSettings>
+            <option name="delegatedBuild" value="true" />
+            <option name="externalProjectPath" value="\$PROJECT_DIR\$" />
+          </GradleProjectSettings>
+        </option>
+      </component>
+      </project>
+    """.stripIndent())
+    result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments('idea')
+        .build()
+
+    then:
+    result.task(':ideaProject').outcome == TaskOutcome.SUCCESS
+    hasAnnotationProcessingDisabled()
+  }
+
+  def "idea task ignores settings of directory-based projects"() {
+    setup:
+    buildFile << """\
+      apply plugin: 'java'
+    """.stripIndent()
+    new File(testProjectDir.newFolder('.idea'), 'gradle.xml') << """\
+      <?xml version="1.0" encoding="UTF-8"?>
+      <project version="4">
+        <component name="GradleSettings">
+          <option name="linkedExternalProjectsSettings">
+            <GradleProjectSettings>
+              <option name="delegatedBuild" value="true" />
+              <option name="externalProjectPath" value="\$PROJECT_DIR\$" />
+            </GradleProjectSettings>
+          </option>
+        </component>
+      </project>
+    """.stripIndent()
+
+    when:
+    def result = GradleRunner.create()
+        .withGradleVersion(TEST_GRADLE_VERSION)
+        .withProjectDir(testProjectDir.root)
+        .withArguments('idea')
+        .build()
+
+    then:
+    result.task(':ideaProject').outcome == TaskOutcome.SUCCESS
+    hasAnnotationProcessingConfigured(true)
+  }
+
+  void hasAnnotationProcessingDisabled() {
+    with (new XmlSlurper().parse(new File(testProjectDir.root, "${moduleName}.ipr")).component.find { it.@name == 'CompilerConfiguration' }
+              .annotationProcessing.profile) {
+      assert it.size() == 1
+      assert it.@name == 'Default'
+      assert it.@default == true
+      assert it.@enabled == false
+      assert it.sourceOutputDir.@name == 'build/generated/sources/annotationProcessor/java/main'
+      assert it.sourceTestOutputDir.@name == 'build/generated/sources/annotationProcessor/java/test'
+    }
+  }
+
   def "idea task, all configurations disabled"() {
     setup:
     def mavenRepo = new GradleDependencyGenerator(
@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2018 Thomas Broyer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ltgt.gradle.apt
+
+import java.util.concurrent.CountDownLatch
+import org.junit.Assert
+import spock.lang.Specification
+
+class ProcessorClassLoadersSpec extends Specification {
+  // A class without dependencies, that can be loaded in isolation
+  static final URL[] PROCESSOR_PATH = [Assert.protectionDomain.codeSource.location] as URL[]
+
+  def "reuses loaded classes until released"() {
+    given:
+    def classLoader = ProcessorClassLoaders.create(PROCESSOR_PATH)
+
+    when:
+    def first = classLoader.loadClass(Assert.name)
+    def second = classLoader.loadClass(Assert.name)
+
+    then:
+    first.is(second)
+    first.classLoader.is(classLoader)
+    !first.is(Assert)
+    classLoader.definedClasses == [first] as Set
+
+    when:
+    ProcessorClassLoaders.release(false, 'test', classLoader)
+
+    then:
+    classLoader.definedClasses.isEmpty()
+
+    when:
+    classLoader.loadClass('org.junit.Assume')
+
+    then:
+    thrown(ClassNotFoundException)
+  }
+
+  def "only resets the context class loader of threads started after its creation"() {
+    given:
+    def release = new CountDownLatch(1)
+    def preexistingThread = Thread.start { release.await() }
+    def classLoader = ProcessorClassLoaders.create(PROCESSOR_PATH)
+    preexistingThread.contextClassLoader = classLoader
+    def started = new CountDownLatch(1)
+    def leakingThread = new Thread({ started.countDown(); release.await() })
+    leakingThread.contextClassLoader = classLoader
+    leakingThread.start()
+    started.await()
+
+    when:
+    ProcessorClassLoaders.release(true, 'test', classLoader)
+
+    then:
+    leakingThread.contextClassLoader == null
+    preexistingThread.contextClassLoader.is(classLoader)
+
+    cleanup:
+    release.countDown()
+    preexistingThread?.join()
+    leakingThread?.join()
+  }
+
+  def "doesn't reset the context class loader unless asked to"() {
+    given:
+    def release = new CountDownLatch(1)
+    def classLoader = ProcessorClassLoaders.create(PROCESSOR_PATH)
+    def started = new CountDownLatch(1)
+    def leakingThread = new Thread({ started.countDown(); release.await() })
+    leakingThread.contextClassLoader = classLoader
+    leakingThread.start()
+    started.await()
+
+    when:
+    ProcessorClassLoaders.release(false, 'test', classLoader)
+
+    then:
+    leakingThread.contextClassLoader.is(classLoader)
+
+    cleanup:
+    release.countDown()
+    leakingThread?.join()
+  }
+
+  def "resets the context class loader of threads started during a compile task"() {
+    given:
+    def release = new CountDownLatch(1)
+    def processorPath = [new File(Assert.protectionDomain.codeSource.location.toURI())]
+    def classLoader = new URLClassLoader(PROCESSOR_PATH, (ClassLoader) null)
+    def otherClassLoader = new URLClassLoader([new File('other.jar').toURI().toURL()] as URL[], (ClassLoader) null)
+    def preexistingThread = Thread.start { release.await() }
+    preexistingThread.contextClassLoader = classLoader
+    def preexistingThreads = Collections.newSetFromMap(new WeakHashMap<Thread, Boolean>())
+    preexistingThreads.addAll(Thread.getAllStackTraces().keySet())
+    def started = new CountDownLatch(2)
+    def leakingThread = new Thread({ started.countDown(); release.await() })
+    leakingThread.contextClassLoader = classLoader
+    leakingThread.start()
+    def otherThread = new Thread({ started.countDown(); release.await() })
+    otherThread.contextClassLoader = otherClassLoader
+    otherThread.start()
+    started.await()
+
+    when:
+    ProcessorClassLoaders.releaseCompileTaskClassLoaders(true, false, 'test', preexistingThreads, processorPath)
+
+    then:
+    leakingThread.contextClassLoader == null
+    preexistingThread.contextClassLoader.is(classLoader)
+    otherThread.contextClassLoader.is(otherClassLoader)
+
+    cleanup:
+    release.countDown()
+    preexistingThread?.join()
+    leakingThread?.join()
+    otherThread?.join()
+    classLoader?.close()
+    otherClassLoader?.close()
+  }
+}